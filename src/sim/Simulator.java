@@ -2,15 +2,53 @@ package sim;
 
 import java.awt.event.MouseAdapter;
 import java.awt.event.MouseWheelEvent;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.io.OutputStream;
+import java.lang.ref.WeakReference;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.Comparator;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
 import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.SplittableRandom;
+import java.util.TreeSet;
+import java.util.WeakHashMap;
+import java.util.stream.IntStream;
 
 // please note that adjusting hyperparameters (eg. train speed, citizen spawn rate) drastically affects the simulation (yeah, I know, duh)
 
@@ -32,15 +70,25 @@ import java.util.PriorityQueue;
 
 public class Simulator {
 
-	public static void main(String [] args) {
+	// world width, height and segment size, and how much of it the map spans, shared by the window and headless runs
+	public static final Vector3 WORLD_SIZE = new Vector3(150, 180, 15);
+	public static final Vector2 MAP_SCALING = new Vector2(0.9, 1);
+
+	public static void main(String [] args) throws IOException {
+
+		// no window at all for batch runs, see Headless
+		if (args.length > 0 && args[0].equals("--headless")) {
+
+			Headless.main(Arrays.copyOfRange(args, 1, args.length));
+			return;
+
+		}
 
 		// app initialization
-		Vector3 worldSize = new Vector3(150, 180, 15);
-		Vector2 xyScaling = new Vector2(0.9, 1);
 		Vector2 windowTopLeftCornerInPixels = new Vector2(64, 64);
 		Vector3 backgroundColor = Vector3.white;
 		int windowHeightInPixels = 1024;
-		App app = new Sim(Sim.DEFAULT_INITIAL_SPEED, Sim.DEFAULT_SIM_SPEED_BOUNDS, worldSize, xyScaling,windowTopLeftCornerInPixels , backgroundColor, windowHeightInPixels);
+		App app = new Sim(World.DEFAULT_INITIAL_SPEED, World.DEFAULT_SIM_SPEED_BOUNDS, WORLD_SIZE, MAP_SCALING, windowTopLeftCornerInPixels , backgroundColor, windowHeightInPixels);
 
 		app.run();
 
@@ -48,36 +96,255 @@ public class Simulator {
 
 }
 
-class Sim extends App {
+// runs the simulation without ever creating a window, for a number of ticks or a simulated duration and as fast as it goes (see USAGE)
+// summary statistics go to the --stats file or stdout
+// --check-routes N compares contraction hierarchy routes with plain searches over N random station pairs (0 for all of them) instead of running
+// --serve PORT answers route queries (see RouteService) during the run and after it until the process is interrupted
+// --export-travel-times FILE writes the travel time matrix to FILE and the isochrones next to it before the run (see TravelTimeMatrix), --ticks 0 skips the run
+class Headless {
+
+	public static final String USAGE = "usage: Simulator --headless [--ticks N] [--duration T] [--speed X] [--engine tick|events] [--parallel true|false] [--seed N] [--stats FILE]"
+			+ " [--check-routes N] [--serve PORT] [--export-travel-times FILE]";
+	public static final long DEFAULT_TICKS = 10000;
+	public static final double ROUTE_COST_TOLERANCE = 1e-6;
+
+	public static void main(String[] args) throws IOException {
+
+		System.setProperty("java.awt.headless", "true");
+
+		long maxTicks = -1;
+		double duration = -1;
+		double speed = World.DEFAULT_INITIAL_SPEED;
+		boolean events = false;
+		Boolean parallel = null;
+		Long seed = null;
+		Path statsFile = null;
+		int checkRoutes = -1;
+		int servePort = -1;
+		Path travelTimesFile = null;
+		try {
+
+			for (int i = 0; i < args.length; i += 2) {
+
+				if (i + 1 == args.length) { throw new IllegalArgumentException("Missing value for " + args[i]); }
+				switch (args[i]) {
+
+				case "--ticks": maxTicks = Long.parseLong(args[i+1]); break;
+				case "--duration": duration = Double.parseDouble(args[i+1]); break;
+				case "--speed": speed = Double.parseDouble(args[i+1]); break;
+				case "--stats": statsFile = Paths.get(args[i+1]); break;
+				case "--engine":
+					if (!args[i+1].equals("tick") && !args[i+1].equals("events")) { throw new IllegalArgumentException("Unknown engine " + args[i+1] + ", expected tick or events"); }
+					events = args[i+1].equals("events");
+					break;
+				case "--parallel": parallel = Boolean.parseBoolean(args[i+1]); break;
+				case "--seed": seed = Long.parseLong(args[i+1]); break;
+				case "--check-routes": checkRoutes = Integer.parseInt(args[i+1]); break;
+				case "--serve": servePort = Integer.parseInt(args[i+1]); break;
+				case "--export-travel-times": travelTimesFile = Paths.get(args[i+1]); break;
+				default: throw new IllegalArgumentException("Unknown option " + args[i]);
 
-	public static final Vector3 DEFAULT_SIM_SPEED_BOUNDS = new Vector3(0.2, 0.0, 10.0);
-	public static final int DEFAULT_CITIZEN_ALLOCATION = 1024;
-	public static final int DEFAULT_TRAIN_ALLOCATION = 8;
-	public static final double DEFAULT_INITIAL_SPEED = 5;
+				}
 
-	private Line[] lines;
-	private Node[] nodes;
-	private ArrayList<ArrayList<ArrayList<Drawable>>> segmentedNodes;
-	private ComplexLine[] complexLines;
-	private int numStops;
+			}
+
+			if (speed <= 0) { throw new IllegalArgumentException("Speed must be positive, not " + speed); }
+
+		} catch (IllegalArgumentException e) {
+
+			exitWithUsage(e instanceof NumberFormatException ? "Expected a number, " + e.getMessage().toLowerCase() : e.getMessage());
+
+		}
+
+		if (maxTicks < 0 && duration < 0) { maxTicks = DEFAULT_TICKS; }
+		if (maxTicks < 0) { maxTicks = Long.MAX_VALUE; }
+		if (duration < 0) { duration = Double.POSITIVE_INFINITY; }
+
+		Vector3 worldSize = Simulator.WORLD_SIZE;
+		if (seed == null) { seed = new SplittableRandom().nextLong(); }
+		World world = new World(worldSize.x, worldSize.y, (int) worldSize.z, Simulator.MAP_SCALING.times(0.5), speed, World.DEFAULT_SIM_SPEED_BOUNDS, seed);
+		// nothing else would happen while waiting on background routes, so route in (parallel) batches right away
+		world.setAsyncRouting(false);
+		if (parallel != null) { world.setParallelTick(parallel); }
+
+		if (checkRoutes >= 0) {
+
+			if (checkRoutes(world, checkRoutes) > 0) { System.exit(1); }
+			return;
+
+		}
+
+		if (travelTimesFile != null && !TravelTimeMatrix.export(travelTimesFile, travelTimesFile.resolveSibling(TravelTimeMatrix.DEFAULT_ISOCHRONE_FILE_NAME), world.getNodes())) { System.exit(1); }
+
+		// the server's dispatcher thread keeps the process alive once the run is over, the hook stops it on ctrl-c
+		RouteService service = null;
+		if (servePort >= 0) {
+
+			service = new RouteService(world.getNodes());
+			service.start(servePort);
+			Runtime.getRuntime().addShutdownHook(new Thread(service::stop, "route-service-shutdown"));
+
+		}
+
+		Sim.Logger.log("Running headless for " + (maxTicks == Long.MAX_VALUE ? "a simulated " + duration : maxTicks + " ticks"));
+		Sim.Logger.disable();
+		long start = System.nanoTime();
+		long ticks = 0;
+		EventEngine engine = null;
+		if (events) {
+
+			// jumps straight from one event to the next, a tick count is taken as the time that many ticks would cover
+			engine = new EventEngine(world);
+			engine.runUntil(Math.min(duration, maxTicks * world.getTimeIncrement()));
+
+		} else {
+
+			while (ticks < maxTicks && world.getGlobalTime() < duration) {
+
+				world.tick();
+				ticks++;
+
+			}
+
+		}
+
+		long wallNanos = System.nanoTime() - start;
+		long handled = engine == null ? 0 : engine.getHandled();
+		Sim.Logger.enable();
+		Sim.Logger.log("Finished " + (events ? handled + " events" : ticks + " ticks") + " in " + String.format("%.3f", wallNanos / 1e9) + "s");
+
+		if (statsFile == null) {
+
+			PrintWriter out = new PrintWriter(System.out);
+			writeStatistics(out, world, events ? "events" : "tick", ticks, handled, wallNanos);
+			out.flush();
+
+		} else {
+
+			try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(statsFile))) { writeStatistics(out, world, events ? "events" : "tick", ticks, handled, wallNanos); }
+			Sim.Logger.log("Wrote statistics to " + statsFile);
+
+		}
+
+		if (service != null) { Sim.Logger.log("Serving routes on port " + service.getPort() + " until interrupted"); }
+
+	}
+
+	// bad arguments stop the run before anything is loaded
+	private static void exitWithUsage(String problem) {
+
+		System.err.println(problem);
+		System.err.println(USAGE);
+		System.exit(2);
+
+	}
+
+	// route costs from a contraction hierarchy over the world's network against PathFinder's, returns how many pairs differ
+	public static int checkRoutes(World world, int samples) {
+
+		StationGraph graph = PathFinder.getGraph();
+		ContractionHierarchy ch = ContractionHierarchy.build(graph);
+		Sim.Logger.log("Built " + ch);
+
+		Node[] nodes = world.getNodes();
+		SplittableRandom random = new SplittableRandom(world.getSeed());
+		long pairs = samples == 0 ? (long) nodes.length * nodes.length : samples;
+		int mismatches = 0;
+		for (long k = 0; k < pairs; k++) {
+
+			Node a = nodes[samples == 0 ? (int) (k / nodes.length) : random.nextInt(nodes.length)];
+			Node b = nodes[samples == 0 ? (int) (k % nodes.length) : random.nextInt(nodes.length)];
+			ArrayList<Node.PathWrapper> expected = PathFinder.findPath(a, b);
+			ArrayList<Node.PathWrapper> actual = ch.findPath(a, b);
+			double want = expected == null ? Double.POSITIVE_INFINITY : graph.cost(expected);
+			double got = actual == null ? Double.POSITIVE_INFINITY : graph.cost(actual);
+			if (want != got && !(Math.abs(want - got) <= ROUTE_COST_TOLERANCE * Math.max(1, want))) {
+
+				if (mismatches++ < 10) { Sim.Logger.log("Route " + a.getID() + " -> " + b.getID() + " costs " + got + " through the hierarchy, " + want + " searched"); }
+
+			}
+
+		}
+
+		Sim.Logger.log("Checked " + pairs + " routes, " + mismatches + " differ");
+		return mismatches;
+
+	}
+
+	// key=value lines, easy to collect from a batch of runs
+	public static void writeStatistics(PrintWriter out, World world, String engine, long ticks, long events, long wallNanos) {
+
+		int[] statuses = new int[TransitStatus.values().length];
+		CitizenStore citizens = world.getCitizens();
+		for (int i = 0; i < citizens.size(); i++) { if (!citizens.isFree(i)) { statuses[citizens.getStatus(i).ordinal()]++; } }
+
+		int waiting = 0;
+		for (Node n : world.getNodes()) { waiting += n.getCitizens(); }
+
+		int trains = 0;
+		int riding = 0;
+		for (Line l : world.getLines()) {
+
+			for (Train t : l.getTrains()) {
+
+				trains++;
+				riding += t.getCitizens();
+
+			}
+
+		}
+
+		out.println("engine=" + engine);
+		out.println("ticks=" + ticks);
+		out.println("events=" + events);
+		out.println("parallel_tick=" + world.isParallelTick());
+		out.println("seed=" + world.getSeed());
+		out.println("simulated_time=" + world.getGlobalTime());
+		out.println("time_increment=" + world.getTimeIncrement());
+		out.println("wall_seconds=" + wallNanos / 1e9);
+		out.println("ticks_per_second=" + (wallNanos == 0 ? 0 : ticks * 1e9 / wallNanos));
+		out.println("stations=" + world.getNodes().length);
+		out.println("lines=" + world.getLines().length);
+		out.println("trains=" + trains);
+		out.println("citizens_spawned=" + world.getSpawnedCitizens());
+		out.println("citizens_finished=" + world.getFinishedCitizens());
+		out.println("citizens_expired=" + world.getExpiredCitizens());
+		out.println("citizens_active=" + citizens.getActive());
+		for (TransitStatus status : TransitStatus.values()) { out.println("citizens_" + status.name().toLowerCase() + "=" + statuses[status.ordinal()]); }
+		// what stations and trains count (and draw) themselves, stations count those changing lines there as well as those waiting
+		// so these come to citizens_waiting_at_station + citizens_line_transfer and citizens_on_train
+		out.println("waiting_at_stations=" + waiting);
+		out.println("riding_trains=" + riding);
+		out.println("route_cache=" + Node.getRouteCache());
+
+	}
+
+}
+
+class Sim extends App {
+
+	// the simulation ticks at a fixed rate on its own thread, however long frames take to paint
+	public static final int TICKS_PER_SECOND = 60;
+	// after a stall at most this many ticks run back to back, the rest of the backlog is dropped
+	public static final int MAX_CATCH_UP_TICKS = 30;
+	// answer route queries over HTTP on localhost (see RouteService) when started with -Dsim.serve=PORT, headless runs take --serve PORT
+	public static final int ROUTE_SERVICE_PORT = Integer.getInteger("sim.serve", -1);
+
+	private World world;
+	private Thread simThread;
+	// input for the simulation thread, applied between ticks
+	private ConcurrentLinkedQueue<Consumer<World>> commands;
+	// the simulation thread swaps in a new snapshot after every batch of ticks, painting only ever draws the latest one
+	private volatile World.Snapshot snapshot;
+	private RouteService routeService;
 	private int nodeSegmentSize;
-	private int ridershipTotal;
 
-	private ArrayList<Citizen> citizens;
-	
-	private boolean paused;
 	private int drawTrains;
 	private int drawCitizens;
 	private boolean drawTip;
-	private boolean spawnCitizens;
 
-	private double globalTime;
-	private double citizenSpawnCycleTime;
 	private double timeIncrement;
-	private double tempTimeIncrement;
-	private double TIME_INCREMENT_INCREMENT;
-	private double MIN_TIME_INCREMENT;
-	private double MAX_TIME_INCREMENT;
+	private Vector3 INCREMENT_SETTINGS;
 
 	private double MAP_X_SCALE;
 	private double MAP_Y_SCALE;
@@ -94,10 +361,8 @@ class Sim extends App {
 		assert WORLD_SIZE.x % WORLD_SIZE.z <= 0.0001 && WORLD_SIZE.y % WORLD_SIZE.z <= 0.0001;
 
 		this.timeIncrement = timeIncrement;
-		this.tempTimeIncrement = timeIncrement;
-		this.TIME_INCREMENT_INCREMENT = INCREMENT_SETTINGS.x;
-		this.MIN_TIME_INCREMENT = INCREMENT_SETTINGS.y;
-		this.MAX_TIME_INCREMENT = INCREMENT_SETTINGS.z;
+		this.INCREMENT_SETTINGS = INCREMENT_SETTINGS;
+		this.commands = new ConcurrentLinkedQueue<Consumer<World>>();
 		setWindowSizeInWorldUnits(WORLD_SIZE.x, WORLD_SIZE.y);
 		this.nodeSegmentSize = (int) WORLD_SIZE.z;
 		this.MAP_X_SCALE = MAP_X_Y_SCALE.x * 0.5;
@@ -113,12 +378,13 @@ class Sim extends App {
 	void setup() {
 
 		Logger.log("Started setup");
-				
-		this.paused = false;
+
+		// a reset replaces the whole world, so the old one stops ticking first
+		stopSimulation();
+
 		this.drawTrains = 0;
 		this.drawCitizens = 0;
 		this.drawTip = true;
-		this.spawnCitizens = true;
 		
 		// mouse wheel zooming
 		this.addMouseWheelListener( new MouseAdapter() {
@@ -139,255 +405,125 @@ class Sim extends App {
 		Drawable.resetPanZoom();
 		mousePosNode = new Node(new Vector2(), Vector3.black, -1);
 
-		// iterate through stations and add stops to appropriate lines
-		ArrayList<Node> nodesList = new ArrayList<Node>();
-		ArrayList<Double> stationXList = new ArrayList<Double>();
-		ArrayList<Double> stationYList = new ArrayList<Double>();
-
-		HashMap<String, Line> lines = new HashMap<String, Line>();
-		ridershipTotal = 0;
-		numStops = 0;
-		
-		int c = 0;
-		
-		try (InputStream in = getClass().getResourceAsStream("stations_data.csv")) {
-
-			BufferedReader reader = new BufferedReader(new InputStreamReader(in));
-			String line;
-
-			while ((line = reader.readLine()) != null) {
-				
-				numStops++;
-				String[] n = line.split(",");				
-				String[] stopLines = n[4].split("-");
-
-				for (String str : stopLines) {
-
-					if (!lines.containsKey(str)) {
-
-						lines.put(str, new Line(str));
-
-					}
-
-				}
-
-				int ridership =  Integer.parseInt(n[5]);
-				ridershipTotal += ridership;
-				Node stop = new Node(n[1], new Vector2(), Vector3.black,ridership);
-				nodesList.add(stop);
-				stationXList.add(Double.parseDouble(n[2]));
-				stationYList.add(Double.parseDouble(n[3]));
-				c++;
+		world = new World(this._windowWidthInWorldUnits, this._windowHeightInWorldUnits, nodeSegmentSize, new Vector2(MAP_X_SCALE, MAP_Y_SCALE), timeIncrement, INCREMENT_SETTINGS);
 
-				// this is rather slow
-				for (String str : stopLines) {
+		if (ROUTE_SERVICE_PORT >= 0) {
 
-					lines.get(str).addStop(stop, 1);
+			// a reset builds new stations, the service has to serve those and not the old ones
+			if (routeService != null) { routeService.stop(); }
+			routeService = new RouteService(world.getNodes());
+			try { routeService.start(ROUTE_SERVICE_PORT); } catch (IOException e) {
 
-				}
+				Logger.log("Route service failed to start: " + e.getMessage());
+				routeService = null;
 
 			}
 
-		} catch (IOException e) { Logger.log("Could not load station data"); e.printStackTrace(); assert false; }
-		
-		nodes = new Node[numStops];
-		double[] stationX = new double[numStops];
-		double[] stationY = new double[numStops];
-		
-		for (int i = 0; i < numStops; i++) {
-			
-			nodes[i] = nodesList.get(i);
-			stationX[i] = stationXList.get(i);
-			stationY[i] = stationYList.get(i);
-			
 		}
-		
-		Logger.log("Read " + nodes.length + " station nodes");
 
-		// convert real-world geometry data to world units
-		Vector2 xMinMax = getMinMax(stationX);
-		Vector2 yMinMax = getMinMax(stationY);
-		normalize(stationX, -this._windowWidthInWorldUnits * MAP_X_SCALE, this._windowWidthInWorldUnits * MAP_X_SCALE, xMinMax.x, xMinMax.y);
-		normalize(stationY, -this._windowHeightInWorldUnits * MAP_Y_SCALE, this._windowHeightInWorldUnits * MAP_Y_SCALE, yMinMax.x, yMinMax.y);
+		snapshot = world.snapshot();
+		startSimulation();
+		
+		Logger.log("Starting simulation!");
+		Logger.disable();
+				
+	}
 
-		for (int i = 0; i < stationX.length; i++) {
+	private void startSimulation() {
 
-			nodes[i].setPos(stationX[i], stationY[i]);
+		World world = this.world;
+		simThread = new Thread(() -> runSimulation(world), "simulation");
+		simThread.setDaemon(true);
+		simThread.start();
 
-		}
+	}
 
-		// used for easiest n-nearest detection throughout
-		segmentedNodes = new ArrayList<ArrayList<ArrayList<Drawable>>>();
+	private void stopSimulation() {
 
-		for (int i = 0; i < (int) this._windowWidthInWorldUnits / nodeSegmentSize + 3; i++) {
+		if (simThread == null) { return; }
+		simThread.interrupt();
+		try { simThread.join(); } catch (InterruptedException e) { Thread.currentThread().interrupt(); }
+		simThread = null;
+		commands.clear();
 
-			segmentedNodes.add(new ArrayList<ArrayList<Drawable>>());
-			for (int j = 0; j < (int) this._windowHeightInWorldUnits / nodeSegmentSize + 3; j++) {
+	}
 
-				segmentedNodes.get(i).add(new ArrayList<Drawable>());
+	// fixed timestep: a tick is due every 1/TICKS_PER_SECOND seconds of wall time, input is applied between ticks
+	private void runSimulation(World world) {
 
-			}
+		// NOTE: like App's paint, an error kills the app instead of leaving a frozen simulation behind
+		try {
 
-		}
+			long tickNanos = 1000000000L / TICKS_PER_SECOND;
+			long nextTick = System.nanoTime();
+			long published = nextTick;
+			while (!Thread.currentThread().isInterrupted()) {
 
-		for (Node n : nodes) { 
+				boolean changed = applyCommands(world);
+				int ticks = 0;
+				while (System.nanoTime() - nextTick >= 0 && ticks < MAX_CATCH_UP_TICKS) {
 
-			// this code should probably be moved to a function
-			int xIndex = ((int) (this._windowWidthInWorldUnits/2 + n.getPos().x)/nodeSegmentSize) + 1;
-			int yIndex = ((int) (this._windowHeightInWorldUnits/2 + n.getPos().y)/nodeSegmentSize) + 1;
+					world.tick();
+					nextTick += tickNanos;
+					ticks++;
+					applyCommands(world);
+					changed = true;
 
-			segmentedNodes.get(xIndex).get(yIndex).add(n);
-			n.setSegmentIndex(xIndex, yIndex);
+					// while catching up, still hand over a frame now and then
+					if (System.nanoTime() - published >= tickNanos) {
 
-		}
+						snapshot = world.snapshot();
+						published = System.nanoTime();
+						changed = false;
 
-		// generate nearby neighbors for walking transfers
-		for (Node n : nodes) {
+					}
 
-			n.addNearbyNeighbors(segmentedNodes);
+				}
 
-		}
-		
-		Logger.log("Segmented nodes into " + segmentedNodes.size() + " by " + segmentedNodes.get(0).size() + " grid and processd position data.");
+				if (ticks == MAX_CATCH_UP_TICKS) { nextTick = System.nanoTime(); }
+				if (changed) {
 
-		// load in configurations for proper stop orders for lines
-		HashMap<String, String> lineConfigs = new HashMap<String, String>();
-		try (InputStream in = getClass().getResourceAsStream("lines_stations.csv")) {
+					snapshot = world.snapshot();
+					published = System.nanoTime();
 
-			BufferedReader reader = new BufferedReader(new InputStreamReader(in));
-			String line;
-			while ((line = reader.readLine()) != null) {
+				}
 
-				if (line.indexOf(",") == -1) { continue; }
-				String lineID = line.substring(0, line.indexOf(","));
-				lines.get(lineID).setColor(new Vector3Mod(line.substring(line.indexOf(",") + 1, line.indexOf(",", line.indexOf(",") + 1))));
-				lineConfigs.put(line.substring(0, line.indexOf(",")), line.substring(line.indexOf(",", line.indexOf(",") + 1) + 1));
+				LockSupport.parkNanos(nextTick - System.nanoTime());
 
 			}
 
-		} catch (IOException e) { Logger.log("Could not load line data"); assert false; }
+		} catch (Exception exception) {
 
-		// apply line configurations
-		c = 0;
-		for (Line l : lines.values()) {
-
-			l.rearrangeStops(lineConfigs.get(l.getID()).split(","));
-			l.overrideStopColors();
-			
-			Train[] trains = new Train[l.getLength() / Line.DEFAULT_TRAIN_SPAWN_SPACING + 1];
-			for (int i = 0; i < trains.length; i++) {
-
-				trains[i] = new Train(c+"", this, (i * Line.DEFAULT_TRAIN_SPAWN_SPACING) % l.getLength(), l, l.getColor(), Train.DEFAULT_TRAIN_SPEED);
-				c++;
-
-			
-			l.setTrains(trains);
-			
-			}
+			exception.printStackTrace(System.out);
+			System.exit(1);
 
 		}
 
-		Logger.log("Loaded and applied line configurations for lines " + lines.keySet());
+	}
 
-		// add lines to simulation array
-		c = 0;
-		this.lines = new Line[lines.keySet().size()];
+	private boolean applyCommands(World world) {
 
-		for (Line l : lines.values()) {
+		boolean applied = false;
+		Consumer<World> command;
+		while ((command = commands.poll()) != null) {
 
-			this.lines[c++] = l;
+			command.accept(world);
+			applied = true;
 
 		}
 
-		// generate complex lines for drawing
-		ArrayList<ComplexLine> complexLinesBuilder = new ArrayList<ComplexLine>();
-		try (InputStream in = getClass().getResourceAsStream("lines_geom_data.csv")) {
-
-			BufferedReader reader = new BufferedReader(new InputStreamReader(in));
-			String line;
-
-			while ((line = reader.readLine()) != null) {
-
-				String[] lineData = line.split(",");
-				Vector3 lineColor = Vector3.black;
-				if (lines.containsKey(lineData[4])) {
-
-					lineColor = lines.get(lineData[4]).getColor();
+		return applied;
 
-				}
-				String[] lineX = lineData[6].split(" ");
-				String[] lineY = lineData[7].split(" ");
-				double[] lineXD = new double[lineX.length];
-				double[] lineYD = new double[lineY.length];
-				Node[] lineNodes = new Node[lineX.length];
+	}
 
-				for (int i = 0; i < lineX.length; i++) {
+	void loop() {
 
-					lineXD[i] = Double.parseDouble(lineX[i]);
-					lineYD[i] = Double.parseDouble(lineY[i]);
+		World.Snapshot frame = this.snapshot;
+		Node[] nodes = world.getNodes();
+		ArrayList<ArrayList<ArrayList<Drawable>>> segmentedNodes = world.getSegmentedNodes();
 
-				}
-
-				normalize(lineXD, -this._windowWidthInWorldUnits * MAP_X_SCALE, this._windowWidthInWorldUnits * MAP_X_SCALE, xMinMax.x, xMinMax.y);
-				normalize(lineYD, -this._windowHeightInWorldUnits * MAP_Y_SCALE, this._windowHeightInWorldUnits * MAP_Y_SCALE, yMinMax.x, yMinMax.y);
-
-				for (int i = 0; i < lineXD.length; i++) {
-
-					lineNodes[i] = new Node(new Vector2(lineXD[i], lineYD[i]), lineColor, -1);
-
-				}
-
-				complexLinesBuilder.add(new ComplexLine(lineData[1], lineColor, lineNodes, Double.parseDouble(lineData[5])));
-
-			}
-
-		} catch (IOException e) { Logger.log("Could not load ComplexLine data"); assert false; }
-
-		complexLines = new ComplexLine[complexLinesBuilder.size()];
-		for (int i = 0; i < complexLines.length; i++) {
-
-			complexLines[i] = complexLinesBuilder.get(i);
-
-		}
-		
-		for (ComplexLine n : complexLines) { 
-
-			int xIndex1 = ((int) (this._windowWidthInWorldUnits/2 + n.getHead().getPos().x)/nodeSegmentSize) + 1;
-			int yIndex1 = ((int) (this._windowHeightInWorldUnits/2 + n.getHead().getPos().y)/nodeSegmentSize) + 1;
-			int xIndex2 = ((int) (this._windowWidthInWorldUnits/2 + n.getTail().getPos().x)/nodeSegmentSize) + 1;
-			int yIndex2 = ((int) (this._windowHeightInWorldUnits/2 + n.getTail().getPos().y)/nodeSegmentSize) + 1;
-			
-			segmentedNodes.get(xIndex1).get(yIndex1).add(n);
-			segmentedNodes.get(xIndex2).get(yIndex2).add(n);
-			n.setSegmentIndex(xIndex1, yIndex1);
-
-		}
-		
-		Logger.log("Loaded and generated " + complexLines.length + " ComplexLine objects and segmented into grid");
-
-		// build and populate citizen arraylist
-		citizens = new ArrayList<Citizen>(Sim.DEFAULT_CITIZEN_ALLOCATION);
-		this.citizenSpawnCycleTime = 0;
-		
-		for (int i = 0; i < Citizen.INITIAL_SPAWN_AMOUNT; i++) {
-			
-			citizens.add(new Citizen(this, Node.findPath(sample(nodes, ridershipTotal), sample(nodes, ridershipTotal))));
-			
-		}
-				
-		Logger.log("Populated " + Citizen.INITIAL_SPAWN_AMOUNT + " citizens");
-		
-		Logger.log("Starting simulation!");
-		Logger.disable();
-				
-	}
-
-	void loop() {
-
-		this.globalTime += timeIncrement;
-		this.citizenSpawnCycleTime += timeIncrement;
-		
 		// get nearest node to mouse and calculate necessary position for manual citizen spawning
+		// station positions and segments never change once loaded, so this is safe to do while the simulation ticks
 		Vector2 realMousePos = mousePosition.times(1/Drawable.getZoom()).minus(Drawable.getMousePan()).minus(Drawable.getPan());
 		int mouseXSegment = (int)Drawable.constrict(((int) (this._windowWidthInWorldUnits/2 + realMousePos.x)/nodeSegmentSize) + 1, 1, segmentedNodes.size()-2);
 		int mouseYSegment = (int)Drawable.constrict(((int) (this._windowHeightInWorldUnits/2 + realMousePos.y)/nodeSegmentSize) + 1, 1, segmentedNodes.size()-2);
@@ -399,6 +535,7 @@ class Sim extends App {
 		Node nearestNeighbor = null;
 		if (mousePosNode.getNeighbors().size() == 0) {
 			
+			nearestNeighbor = nodes[0];
 			double dist = Drawable.distanceBetween(mousePosNode, nodes[0]);
 			for (int i = 1; i < nodes.length; i++) {
 				
@@ -478,26 +615,15 @@ class Sim extends App {
 		// simulation speed adjustments
 		if (keyPressed('1')) {
 
-			this.timeIncrement = Drawable.constrict(timeIncrement-TIME_INCREMENT_INCREMENT, MIN_TIME_INCREMENT, MAX_TIME_INCREMENT);
+			commands.add(World::slowDown);
 
 		} if (keyPressed('2')) {
 
-			this.timeIncrement = Drawable.constrict(timeIncrement+TIME_INCREMENT_INCREMENT, MIN_TIME_INCREMENT, MAX_TIME_INCREMENT);
+			commands.add(World::speedUp);
 
 		} if (keyPressed('P')) {
 			
-			if (paused) {
-				
-				this.timeIncrement = this.tempTimeIncrement;
-				
-			} else {
-				
-				this.tempTimeIncrement = timeIncrement;
-				this.timeIncrement = 0;
-				
-			}
-			
-			paused = !paused;
+			commands.add(World::togglePause);
 			
 		}
 		
@@ -522,143 +648,85 @@ class Sim extends App {
 			
 		}
 		
-		// citizen adjustments
-		if (keyPressed('F')) {
-			
-			spawnCitizens = !spawnCitizens;
+		// export travel times and isochrones from every station, in the background since it takes a moment
+		if (keyPressed('M')) {
 			
-		} if (keyPressed('\b')) {
+			URL resource = getClass().getResource("stations_data.csv");
+			commands.add(w -> CompletableFuture.runAsync(() -> { if (!TravelTimeMatrix.export(resource, w.getNodes())) { Logger.log("Nowhere to export travel times to"); } }));
 			
-			citizens = new ArrayList<Citizen>(DEFAULT_CITIZEN_ALLOCATION);
-			for (Line l : lines) {
-				
-				for (Train t : l.getTrains()) {
-					
-					t.clearCitizens();
-					
-				}
-				
-			}
+		}
+		
+		// take the nearest station out of service (or put it back)
+		if (keyPressed('X') && nearestNeighbor != null) {
 			
-			for (Node n : nodes) {
-				
-				n.clearCitizens();
-				
-			}
+			Node stop = nearestNeighbor;
+			commands.add(w -> w.toggleStop(stop));
 			
 		}
 		
-		// manually spawn citizens
-		if (keyPressed('E')) {
+		// citizen adjustments
+		if (keyPressed('F')) {
 			
-			Node from = nearestNeighbor;
-			int max = Citizen.SPAWN_MAX;
-			if (Citizen.SPAWN_RANDRANGE) { max *= Math.random(); }
-			Node[] neighboringNodes = mousePosNode.getNeighboringNodes();
-			for (int i = 0; i < max; i++) {
-				
-				if (mousePosNode.getNeighbors().size() != 0) { from = sample(neighboringNodes); }
-				citizens.add(new Citizen(this, Node.generateWalkingPath(mousePosNode, from, sample(this.nodes, this.ridershipTotal))));
-				
-			}
+			commands.add(World::toggleSpawning);
+			
+		} if (keyPressed('\b')) {
 			
-			Logger.log("User spawned in nodes near " + nearestNeighbor);
+			commands.add(World::clearCitizens);
 			
 		}
 		
-		// despawn citizens
-		// amount of citizens can vary with simulation speed, not fully intentional
-		int c1 = 0; int c2 = 0;
-		if (this.citizenSpawnCycleTime >= Citizen.SPAWN_INTERVAL) {
-			
-			this.citizenSpawnCycleTime = 0;
-			for (int i = 0; i < citizens.size(); i++) {
-				
-				if (citizens.get(i).getGlobalTime() >= Citizen.MAX_TIME_ALIVE) {
-					
-					c1++;
-					citizens.get(i).getCurrentNode().removeCitizen(); // this could cause excessive removals (but no citizens ever seem to get garbage collected, so it's fine)
-					citizens.get(i).removeFromTrain();
-					citizens.remove(i);
-					continue;
-					
-				}
-				
-				if (citizens.get(i).getStatus().equals(TransitStatus.DESPAWN)) {
-					
-					c2++;
-					citizens.remove(i);
-					
-				}
-				
-			}
-			
-			Logger.log("Despawned " + (c1+c2) + " citizens, " + c1 + " garbage collected and " + c2 + " natural");
+		// manually spawn citizens, from a copy of the mouse position since mousePosNode keeps moving
+		if (keyPressed('E')) {
 			
-			if (spawnCitizens) {
-				
-				int max = Citizen.SPAWN_MAX;
-				if (Citizen.SPAWN_RANDRANGE) { max *= Math.random(); }
-				for (int i = 0; i < max; i++) {
-					
-					Node from = sample(nodes, ridershipTotal);
-					double xRange = Math.random() * Citizen.SPAWN_MAX_DIST - Citizen.SPAWN_MAX_DIST/2;
-					double yRange = Math.random() * Citizen.SPAWN_MAX_DIST - Citizen.SPAWN_MAX_DIST/2;
-					Node randPos = new Node(from.getPos().plus(new Vector2(xRange, yRange)), Vector3.black, i);
-					randPos.setSize(0);
-					citizens.add(new Citizen(this, Node.generateWalkingPath(randPos, from, sample(nodes, ridershipTotal))));
-					
-				}
-				
-				Logger.log("Spawned " + max + " citizens");
-				
-			}
+			Node spawn = new Node(new Vector2(realMousePos), Vector3.black, -1);
+			Node nearest = nearestNeighbor;
+			Node[] nearby = mousePosNode.getNeighboringNodes();
+			commands.add(w -> w.spawnNear(spawn, nearest, nearby));
 			
 		}
 		
-		// draw game objects
-		for (ComplexLine cl : complexLines) {
+		// draw the latest snapshot
+		for (ComplexLine cl : world.getComplexLines()) {
 
 			Drawable.drawComplexLine(this, cl);
 
 		}
 
-		for (Node n : nodes) {
+		for (int i = 0; i < nodes.length; i++) {
 
-			Drawable.drawCircle(this, n);
+			Drawable.drawCircle(this, nodes[i].getPos(), frame.getStationSize(i), frame.isStationInService(i) ? nodes[i].getColor() : Vector3.lightGray);
 
 		}
 		
-		for (Line l : lines) {
-
-			for (Train t : l.getTrains()) {
+		for (int i = 0; i < frame.getTrains(); i++) {
 
-				t.updatePosAlongLine();
-				if (drawTrains % 3 != 2) {
+			if (drawTrains % 3 != 2) {
+				
+				if (drawTrains % 3 == 0 || drawTrains % 3 == 1 && frame.getTrainRiders(i) >= Train.SMALL_CITIZENS) {
 					
-					if (drawTrains % 3 == 0 || drawTrains % 3 == 1 && t.getCitizens() >= Train.SMALL_CITIZENS) {
-						
-						Drawable.drawCircle(this, t);
-						Drawable.drawString(this, t, t.getLine().getID(), Vector3.black, Train.FONT_SIZE, Train.FONT_CENTERED);
-						
-					}
-
+					Line l = frame.getTrainLine(i);
+					Drawable.drawCircle(this, frame.getTrainPos(i), frame.getTrainSize(i), l.getColor());
+					Drawable.drawString(this, frame.getTrainPos(i), l.getID(), Vector3.black, Train.FONT_SIZE, Train.FONT_CENTERED);
 					
 				}
 
+				
 			}
 
 		}
 		
-		for (Citizen c : citizens) {
+		for (int i = 0; i < frame.getCitizens(); i++) {
 
-			c.followPath();
 			// checking for walking speeds up draw time significantly, but may hinder debug efforts
 			if (drawCitizens % 3 != 0) {
 				
-				if ( (c.getStatus().equals(TransitStatus.WALKING) || c.getStatus().equals(TransitStatus.LINE_TRANSFER)) && drawTrains % 3 == 1 && c.getColor().equals(Citizen.DEFAULT_CITIZEN_COLOR) || drawCitizens % 3 == 2 && c.getColor().equals(Citizen.DEFAULT_CITIZEN_SPAWN_COLOR)) {
+				if (frame.hasCitizenFlag(i, World.Snapshot.WALKING) && drawTrains % 3 == 1 && frame.hasCitizenFlag(i, World.Snapshot.DEFAULT_COLOR)) {
 					
-					Drawable.drawCircle(this, c);
+					Drawable.drawCircle(this, frame.getCitizenPos(i), frame.getCitizenSize(i), Citizen.DEFAULT_CITIZEN_COLOR);
+
+				} else if (drawCitizens % 3 == 2 && frame.hasCitizenFlag(i, World.Snapshot.SPAWN_COLOR)) {
+
+					Drawable.drawCircle(this, frame.getCitizenPos(i), frame.getCitizenSize(i), Citizen.DEFAULT_CITIZEN_SPAWN_COLOR);
 
 				}
 				
@@ -666,80 +734,19 @@ class Sim extends App {
 
 		}
 		
-		String simSpeed = String.format("%.3f", this.timeIncrement);
-		if (this.timeIncrement == 0) { simSpeed = "PAUSED"; }
+		String simSpeed = String.format("%.3f", frame.getTimeIncrement());
+		if (frame.getTimeIncrement() == 0) { simSpeed = "PAUSED"; }
 		drawString("Current simulation speed: " + simSpeed, this.textPos, Vector3.black, 12, false);
-		drawString("Active citizen agents: " + citizens.size(), this.text2Pos, Vector3.black, 12, false);
+		drawString("Active citizen agents: " + frame.getCitizens(), this.text2Pos, Vector3.black, 12, false);
 		String nearestNeighborString = "NULL";
-		if (nearestNeighbor != null) { nearestNeighborString = nearestNeighbor.getID() + ", " + nearestNeighbor.getCitizens() + " passengers waiting"; }
+		if (nearestNeighbor != null) { nearestNeighborString = nearestNeighbor.getID() + ", " + frame.getStationWaiting(nearestNeighbor.getIndex()) + " passengers waiting"; }
 		drawString("Nearest station: " + nearestNeighborString, this.text3Pos, Vector3.black, 12, false);
-		if (drawTip) { drawString("1/2/P sim speed, T/G show trains/citizens, C/R reset view/sim, E/F/bkspc control citizen spawning, I to hide this", this.text4Pos, Vector3.black, 12, false); }
-
-	}
-	
-	// some utility methods used in setup/loop
-	public static Vector2 getMinMax(double[] arr) {
-
-		if (arr == null || arr.length == 0) { return null; }
+		if (drawTip) { drawString("1/2/P sim speed, T/G show trains/citizens, C/R reset view/sim, E/F/bkspc control citizen spawning, X close station, M export travel times, I to hide this", this.text4Pos, Vector3.black, 12, false); }
 
-		double minInArr = arr[0];
-		double maxInArr = arr[0];
-		for (double i : arr) {
-
-			if (i < minInArr) { minInArr = i; }
-			if (i > maxInArr) { maxInArr = i; }
-
-		}
-
-		return new Vector2(minInArr, maxInArr);
-
-	}
-
-	public static boolean normalize(double[] arr, double min, double max, double minInArr, double maxInArr) {
-
-		double maxMinDiff = max - min;
-		double maxMinInArrDiff = maxInArr - minInArr;
-
-		if (maxMinInArrDiff + min == 0) { return false; }
-
-		for (int i = 0; i < arr.length; i++) {
-
-			arr[i] = maxMinDiff * (arr[i] - minInArr) / (maxMinInArrDiff) + min;
-
-		}
-
-		return true;
-
-	}
-	
-	public static Node sample(Node[] nodes, int sum) {
-		
-		int rand = (int)(Math.random() * sum);
-		int randCount = 0;
-		for (Node n : nodes) {
-			
-			if (randCount >= rand) {
-				
-				return n;
-				
-			}
-			randCount += n.getRidership();
-			
-		}
-		
-		return sample(nodes);
-		
-	}
-	
-	public static Node sample(Node[] nodes) {
-		
-		return nodes[(int)(Math.random() * nodes.length)];
-		
 	}
 
-	public double getTimeIncrement() { return this.timeIncrement; }
-	public double getGlobalTime() { return this.globalTime; }
-	public String toString() { return "City simulation running for " + globalTime + " ticks."; }
+	public World getWorld() { return this.world; }
+	public String toString() { return "City simulation window showing " + world; }
 	
 	static class Logger {
 		
@@ -761,702 +768,5323 @@ class Sim extends App {
 
 }
 
-class Drawable {
-
-	final static double ZOOM_CONST = 0.05;
-	final static double ZOOM_MAX = 4;
-	final static double ZOOM_MIN = 0.1;
-	final static double PAN_CONST = 0.25;
-	final static double PAN_X_MINMAX = 50;
-	final static double PAN_Y_MINMAX = 50;
+// the simulation itself: the network, its citizens and outages, advanced one tick at a time and never drawn directly
+// Sim steps it on a thread of its own and only paints the snapshots it publishes
+class World {
 
-	private static double zoom;
-	private static Vector2 pan;
-	private static Vector2 mousePan;
+	public static final Vector3 DEFAULT_SIM_SPEED_BOUNDS = new Vector3(0.2, 0.0, 10.0);
+	public static final double DEFAULT_INITIAL_SPEED = 5;
+	public static final int DEFAULT_CITIZEN_ALLOCATION = 1024;
+	public static final int DEFAULT_TRAIN_ALLOCATION = 8;
+	// route with train arrival times (ConnectionScan) instead of distances only
+	public static final boolean TIME_DEPENDENT_ROUTING = false;
+	// compute routes for spawned citizens in the background instead of stalling the tick
+	public static final boolean ASYNC_ROUTING = true;
+	// spread riders between busy stations over a few alternative routes (see RouteChoices)
+	public static final boolean ROUTE_CHOICE = true;
+	// update lines, then chunks of citizens, in parallel where there is more than one core, with the same results as one thread
+	public static final boolean PARALLEL_TICK = true;
 
-	private String id;
-	private Vector2 pos;
-	private Vector3 color;
-	private double size;
-	
-	private int xSegmentIndex;
-	private int ySegmentIndex;
+	private Line[] lines;
+	private Node[] nodes;
+	private ArrayList<ArrayList<ArrayList<Drawable>>> segmentedNodes;
+	private ComplexLine[] complexLines;
+	private int numStops;
+	private int nodeSegmentSize;
+	private int ridershipTotal;
+	private RouteEngine staticRouteEngine;
+	private ConnectionScan timetable;
+	private RouteChoices routeChoices;
 
-	public Drawable(Vector2 pos, Vector3 color, double size) {
+	private Train[] trains;
+	private CitizenStore citizens;
+	// how many citizens follow each route, and the edges those routes use, so disruptions only reroute who they affect
+	private HashMap<Long, Integer> ridersByRoute;
+	private RouteIndex riderRoutes;
+	private HashSet<Line> closedLines;
+	private HashSet<Node> closedStops;
+	private int closedTransfers;
 
-		this("", pos, color, size);
+	private boolean paused;
+	private boolean spawnCitizens;
+	private boolean asyncRouting;
+	private boolean parallelTick;
+	// every run is reproducible from its seed, each subsystem draws from its own stream split off the root
+	private long seed;
+	private SplittableRandom spawnRandom;
+	private SplittableRandom commandRandom;
+	private SplittableRandom routeRandom;
+	private long spawnedCitizens;
+	private long finishedCitizens;
+	private long expiredCitizens;
 
-	}
+	private double globalTime;
+	private double citizenSpawnCycleTime;
+	private double timeIncrement;
+	private double tempTimeIncrement;
+	private double TIME_INCREMENT_INCREMENT;
+	private double MIN_TIME_INCREMENT;
+	private double MAX_TIME_INCREMENT;
 
-	public Drawable(String id, Vector2 pos, Vector3 color, double size) {
+	public World(double worldWidth, double worldHeight, int nodeSegmentSize, Vector2 mapScale, double timeIncrement, Vector3 INCREMENT_SETTINGS) {
 
-		this.id = id;
-		this.pos = pos;
-		this.color = color;
-		this.size = size;
+		this(worldWidth, worldHeight, nodeSegmentSize, mapScale, timeIncrement, INCREMENT_SETTINGS, new SplittableRandom().nextLong());
 
 	}
-	
-	public static double constrict(double d, double min, double max) {
 
-		return Math.min(Math.max(d, min), max);
-
-	}
+	// loads the network scaled to fit a worldWidth by worldHeight area and populates it with the initial citizens
+	public World(double worldWidth, double worldHeight, int nodeSegmentSize, Vector2 mapScale, double timeIncrement, Vector3 INCREMENT_SETTINGS, long seed) {
 
-	public static void adjustPan(double x, double y) {
+		double mapXScale = mapScale.x;
+		double mapYScale = mapScale.y;
+		this.nodeSegmentSize = nodeSegmentSize;
+		this.timeIncrement = timeIncrement;
+		this.tempTimeIncrement = timeIncrement;
+		this.TIME_INCREMENT_INCREMENT = INCREMENT_SETTINGS.x;
+		this.MIN_TIME_INCREMENT = INCREMENT_SETTINGS.y;
+		this.MAX_TIME_INCREMENT = INCREMENT_SETTINGS.z;
+		this.paused = false;
+		this.spawnCitizens = true;
+		this.asyncRouting = ASYNC_ROUTING;
+		this.parallelTick = PARALLEL_TICK && Runtime.getRuntime().availableProcessors() > 1;
+		this.seed = seed;
+		SplittableRandom random = new SplittableRandom(seed);
+		this.spawnRandom = random.split();
+		this.commandRandom = random.split();
+		this.routeRandom = random.split();
+		ridersByRoute = new HashMap<Long, Integer>();
+		riderRoutes = new RouteIndex();
+		closedLines = new HashSet<Line>();
+		closedStops = new HashSet<Node>();
+		closedTransfers = 0;
 
-		pan = pan.minus(new Vector2(x, y));
-		constrictPan(pan);
+		// iterate through stations and add stops to appropriate lines
+		ArrayList<Node> nodesList = new ArrayList<Node>();
+		ArrayList<Double> stationXList = new ArrayList<Double>();
+		ArrayList<Double> stationYList = new ArrayList<Double>();
 
-	}
+		HashMap<String, Line> lines = new HashMap<String, Line>();
+		ridershipTotal = 0;
+		numStops = 0;
+		
+		int c = 0;
+		
+		try (InputStream in = getClass().getResourceAsStream("stations_data.csv")) {
 
-	public static void constrictPan(Vector2 pan) {
+			BufferedReader reader = new BufferedReader(new InputStreamReader(in));
+			String line;
+
+			while ((line = reader.readLine()) != null) {
+				
+				numStops++;
+				String[] n = line.split(",");				
+				String[] stopLines = n[4].split("-");
+
+				for (String str : stopLines) {
+
+					if (!lines.containsKey(str)) {
+
+						lines.put(str, new Line(str));
+
+					}
+
+				}
+
+				int ridership =  Integer.parseInt(n[5]);
+				ridershipTotal += ridership;
+				Node stop = new Node(n[1], new Vector2(), Vector3.black,ridership);
+				nodesList.add(stop);
+				stationXList.add(Double.parseDouble(n[2]));
+				stationYList.add(Double.parseDouble(n[3]));
+				c++;
+
+				// this is rather slow
+				for (String str : stopLines) {
+
+					lines.get(str).addStop(stop, 1);
+
+				}
+
+			}
+
+		} catch (IOException e) { Sim.Logger.log("Could not load station data"); e.printStackTrace(); assert false; }
+		
+		nodes = new Node[numStops];
+		double[] stationX = new double[numStops];
+		double[] stationY = new double[numStops];
+		
+		for (int i = 0; i < numStops; i++) {
+			
+			nodes[i] = nodesList.get(i);
+			stationX[i] = stationXList.get(i);
+			stationY[i] = stationYList.get(i);
+			
+		}
+		
+		Sim.Logger.log("Read " + nodes.length + " station nodes");
+
+		// convert real-world geometry data to world units
+		Vector2 xMinMax = getMinMax(stationX);
+		Vector2 yMinMax = getMinMax(stationY);
+		normalize(stationX, -worldWidth * mapXScale, worldWidth * mapXScale, xMinMax.x, xMinMax.y);
+		normalize(stationY, -worldHeight * mapYScale, worldHeight * mapYScale, yMinMax.x, yMinMax.y);
+
+		for (int i = 0; i < stationX.length; i++) {
+
+			nodes[i].setPos(stationX[i], stationY[i]);
+
+		}
+		
+		PathFinder.setNetwork(nodes);
+		Node.getRouteCache().clear();
+
+		// used for easiest n-nearest detection throughout
+		segmentedNodes = new ArrayList<ArrayList<ArrayList<Drawable>>>();
+
+		for (int i = 0; i < (int) worldWidth / nodeSegmentSize + 3; i++) {
+
+			segmentedNodes.add(new ArrayList<ArrayList<Drawable>>());
+			for (int j = 0; j < (int) worldHeight / nodeSegmentSize + 3; j++) {
+
+				segmentedNodes.get(i).add(new ArrayList<Drawable>());
+
+			}
+
+		}
+
+		for (Node n : nodes) { 
+
+			// this code should probably be moved to a function
+			int xIndex = ((int) (worldWidth/2 + n.getPos().x)/nodeSegmentSize) + 1;
+			int yIndex = ((int) (worldHeight/2 + n.getPos().y)/nodeSegmentSize) + 1;
+
+			segmentedNodes.get(xIndex).get(yIndex).add(n);
+			n.setSegmentIndex(xIndex, yIndex);
+
+		}
+
+		// generate nearby neighbors for walking transfers
+		for (Node n : nodes) {
+
+			n.addNearbyNeighbors(segmentedNodes);
+
+		}
+		
+		Sim.Logger.log("Segmented nodes into " + segmentedNodes.size() + " by " + segmentedNodes.get(0).size() + " grid and processd position data.");
+
+		// load in configurations for proper stop orders for lines
+		HashMap<String, String> lineConfigs = new HashMap<String, String>();
+		try (InputStream in = getClass().getResourceAsStream("lines_stations.csv")) {
+
+			BufferedReader reader = new BufferedReader(new InputStreamReader(in));
+			String line;
+			while ((line = reader.readLine()) != null) {
+
+				if (line.indexOf(",") == -1) { continue; }
+				String lineID = line.substring(0, line.indexOf(","));
+				lines.get(lineID).setColor(new Vector3Mod(line.substring(line.indexOf(",") + 1, line.indexOf(",", line.indexOf(",") + 1))));
+				lineConfigs.put(line.substring(0, line.indexOf(",")), line.substring(line.indexOf(",", line.indexOf(",") + 1) + 1));
+
+			}
+
+		} catch (IOException e) { Sim.Logger.log("Could not load line data"); assert false; }
+
+		// apply line configurations
+		c = 0;
+		for (Line l : lines.values()) {
+
+			l.rearrangeStops(lineConfigs.get(l.getID()).split(","));
+			l.overrideStopColors();
+			
+			Train[] trains = new Train[l.getLength() / Line.DEFAULT_TRAIN_SPAWN_SPACING + 1];
+			for (int i = 0; i < trains.length; i++) {
+
+				trains[i] = new Train(c+"", this, (i * Line.DEFAULT_TRAIN_SPAWN_SPACING) % l.getLength(), l, l.getColor(), Train.DEFAULT_TRAIN_SPEED);
+				c++;
+
+			
+			l.setTrains(trains);
+			
+			}
+
+		}
+
+		Sim.Logger.log("Loaded and applied line configurations for lines " + lines.keySet());
+
+		// add lines to simulation array
+		c = 0;
+		this.lines = new Line[lines.keySet().size()];
+
+		for (Line l : lines.values()) {
+
+			l.setIndex(c);
+			this.lines[c++] = l;
+
+		}
+		
+		// no more edges get added past this point, so searches can run on the frozen graph
+		PathFinder.setGraph(StationGraph.build(nodes, this.lines));
+		PathFinder.setLandmarks(Landmarks.build(PathFinder.getGraph(), Landmarks.DEFAULT_LANDMARKS));
+		
+		// small enough networks get a precomputed all-pairs next-hop table, bigger ones a contraction hierarchy
+		if (NextHopTable.fits(nodes, this.lines, PathFinder.getGraph())) {
+			
+			staticRouteEngine = NextHopTable.loadOrBuild(getClass().getResource("stations_data.csv"), nodes, this.lines);
+			
+		} else {
+			
+			staticRouteEngine = ContractionHierarchy.build(PathFinder.getGraph());
+			Sim.Logger.log("Built " + staticRouteEngine);
+			
+		}
+		
+		routeChoices = null;
+		if (ROUTE_CHOICE) {
+			
+			routeChoices = RouteChoices.build(nodes, RouteChoices.DEFAULT_ALTERNATIVES, RouteChoices.DEFAULT_RIDERSHIP_SHARE);
+			Sim.Logger.log("Built " + routeChoices);
+			
+		}
+		
+		timetable = null;
+		updateRouteEngine();
+		updateTimetable();
+
+		// generate complex lines for drawing
+		ArrayList<ComplexLine> complexLinesBuilder = new ArrayList<ComplexLine>();
+		try (InputStream in = getClass().getResourceAsStream("lines_geom_data.csv")) {
+
+			BufferedReader reader = new BufferedReader(new InputStreamReader(in));
+			String line;
+
+			while ((line = reader.readLine()) != null) {
+
+				String[] lineData = line.split(",");
+				Vector3 lineColor = Vector3.black;
+				if (lines.containsKey(lineData[4])) {
+
+					lineColor = lines.get(lineData[4]).getColor();
+
+				}
+				String[] lineX = lineData[6].split(" ");
+				String[] lineY = lineData[7].split(" ");
+				double[] lineXD = new double[lineX.length];
+				double[] lineYD = new double[lineY.length];
+				Node[] lineNodes = new Node[lineX.length];
+
+				for (int i = 0; i < lineX.length; i++) {
+
+					lineXD[i] = Double.parseDouble(lineX[i]);
+					lineYD[i] = Double.parseDouble(lineY[i]);
+
+				}
+
+				normalize(lineXD, -worldWidth * mapXScale, worldWidth * mapXScale, xMinMax.x, xMinMax.y);
+				normalize(lineYD, -worldHeight * mapYScale, worldHeight * mapYScale, yMinMax.x, yMinMax.y);
+
+				for (int i = 0; i < lineXD.length; i++) {
+
+					lineNodes[i] = new Node(new Vector2(lineXD[i], lineYD[i]), lineColor, -1);
+
+				}
+
+				complexLinesBuilder.add(new ComplexLine(lineData[1], lineColor, lineNodes, Double.parseDouble(lineData[5])));
+
+			}
+
+		} catch (IOException e) { Sim.Logger.log("Could not load ComplexLine data"); assert false; }
+
+		complexLines = new ComplexLine[complexLinesBuilder.size()];
+		for (int i = 0; i < complexLines.length; i++) {
+
+			complexLines[i] = complexLinesBuilder.get(i);
+
+		}
+		
+		for (ComplexLine n : complexLines) { 
+
+			int xIndex1 = ((int) (worldWidth/2 + n.getHead().getPos().x)/nodeSegmentSize) + 1;
+			int yIndex1 = ((int) (worldHeight/2 + n.getHead().getPos().y)/nodeSegmentSize) + 1;
+			int xIndex2 = ((int) (worldWidth/2 + n.getTail().getPos().x)/nodeSegmentSize) + 1;
+			int yIndex2 = ((int) (worldHeight/2 + n.getTail().getPos().y)/nodeSegmentSize) + 1;
+			
+			segmentedNodes.get(xIndex1).get(yIndex1).add(n);
+			segmentedNodes.get(xIndex2).get(yIndex2).add(n);
+			n.setSegmentIndex(xIndex1, yIndex1);
+
+		}
+		
+		Sim.Logger.log("Loaded and generated " + complexLines.length + " ComplexLine objects and segmented into grid");
+
+		// build and populate citizen arraylist
+		ArrayList<Train> trainList = new ArrayList<Train>();
+		for (Line l : this.lines) { trainList.addAll(Arrays.asList(l.getTrains())); }
+		trains = trainList.toArray(new Train[0]);
+		for (int i = 0; i < trains.length; i++) { trains[i].setIndex(i); }
+		citizens = new CitizenStore(this, nodes, trains, DEFAULT_CITIZEN_ALLOCATION);
+		this.citizenSpawnCycleTime = 0;
+		
+		SplittableRandom initial = spawnRandom.split();
+		RouteBatch batch = new RouteBatch(Citizen.INITIAL_SPAWN_AMOUNT, routeRandom.split());
+		for (int i = 0; i < Citizen.INITIAL_SPAWN_AMOUNT; i++) {
+			
+			batch.add(null, sample(nodes, ridershipTotal, initial), sample(nodes, ridershipTotal, initial));
+			
+		}
+		
+		spawnCitizens(batch);
+				
+		Sim.Logger.log("Populated " + Citizen.INITIAL_SPAWN_AMOUNT + " citizens with seed " + seed);
+
+	}
+
+	// advances the simulation by one time increment
+	public void tick() {
+
+		this.globalTime += timeIncrement;
+		this.citizenSpawnCycleTime += timeIncrement;
+		updateTimetable();
+		
+		// amount of citizens can vary with simulation speed, not fully intentional
+		if (this.citizenSpawnCycleTime >= Citizen.SPAWN_INTERVAL) {
+			
+			this.citizenSpawnCycleTime = 0;
+			cycleCitizens();
+			
+		}
+
+		if (parallelTick && Train.GREEDY_PATH) {
+
+			// each line's trains only board from queues for that line, the stations lines share are updated afterwards in line order
+			for (Train t : trains) { t.deferStationChanges(); }
+			Arrays.stream(lines).parallel().forEach(l -> { for (Train t : l.getTrains()) { t.updatePosAlongLine(); } });
+			for (Line l : lines) {
+
+				for (Train t : l.getTrains()) { t.applyStationChanges(nodes); }
+
+			}
+
+		} else {
+
+			for (Line l : lines) {
+
+				for (Train t : l.getTrains()) {
+
+					t.updatePosAlongLine();
+
+				}
+
+			}
+
+		}
+
+		citizens.tick(timeIncrement, parallelTick);
+
+	}
+
+	// despawn citizens, one pass that frees their slots for reuse, then spawn a new batch
+	public void cycleCitizens() {
+
+		int expired = 0; int finished = 0;
+		for (int i = 0; i < citizens.size(); i++) {
+			
+			if (citizens.isFree(i)) { continue; }
+			
+			if (citizens.getStatus(i).equals(TransitStatus.DESPAWN)) {
+				
+				finished++;
+				finishCitizen(i);
+				
+			} else if (citizens.getGlobalTime(i) >= Citizen.MAX_TIME_ALIVE) {
+				
+				expired++;
+				expireCitizen(i);
+				
+			}
+			
+		}
+		
+		Sim.Logger.log("Despawned " + (expired+finished) + " citizens, " + expired + " expired and " + finished + " finished their trip");
+		spawnRandomCitizens();
+
+	}
+
+	public void finishCitizen(int i) {
+
+		finishedCitizens++;
+		removeRider(i);
+		citizens.release(i);
+
+	}
+
+	public void expireCitizen(int i) {
+
+		expiredCitizens++;
+		citizens.expire(i);
+		removeRider(i);
+		citizens.release(i);
+
+	}
+
+	public void spawnRandomCitizens() {
+
+		if (spawnCitizens) {
+			
+			// a fresh stream per spawn cycle, the same cycle draws the same citizens however the run got there
+			SplittableRandom random = spawnRandom.split();
+			int max = Citizen.SPAWN_MAX;
+			if (Citizen.SPAWN_RANDRANGE) { max *= random.nextDouble(); }
+			RouteBatch batch = new RouteBatch(max, routeRandom.split());
+			for (int i = 0; i < max; i++) {
+				
+				Node from = sample(nodes, ridershipTotal, random);
+				double xRange = random.nextDouble() * Citizen.SPAWN_MAX_DIST - Citizen.SPAWN_MAX_DIST/2;
+				double yRange = random.nextDouble() * Citizen.SPAWN_MAX_DIST - Citizen.SPAWN_MAX_DIST/2;
+				Node randPos = new Node(from.getPos().plus(new Vector2(xRange, yRange)), Vector3.black, i);
+				randPos.setSize(0);
+				batch.add(randPos, from, sample(nodes, ridershipTotal, random));
+				
+			}
+			
+			if (asyncRouting) { spawnCitizensAsync(batch); } else { spawnCitizens(batch); }
+			
+			Sim.Logger.log("Spawned " + max + " citizens");
+			Sim.Logger.log(Node.getRouteCache().toString());
+			
+		}
+
+	}
+
+	// simulation speed adjustments
+	public void slowDown() { this.timeIncrement = Drawable.constrict(timeIncrement-TIME_INCREMENT_INCREMENT, MIN_TIME_INCREMENT, MAX_TIME_INCREMENT); }
+	public void speedUp() { this.timeIncrement = Drawable.constrict(timeIncrement+TIME_INCREMENT_INCREMENT, MIN_TIME_INCREMENT, MAX_TIME_INCREMENT); }
+
+	public void togglePause() {
+
+		if (paused) {
+
+			this.timeIncrement = this.tempTimeIncrement;
+
+		} else {
+
+			this.tempTimeIncrement = timeIncrement;
+			this.timeIncrement = 0;
+
+		}
+
+		paused = !paused;
+
+	}
+
+	// citizen adjustments
+	public void toggleSpawning() { this.spawnCitizens = !this.spawnCitizens; }
+
+	public void clearCitizens() {
+
+		citizens.clear();
+		ridersByRoute.clear();
+		riderRoutes.clear();
+		for (Line l : lines) {
+
+			for (Train t : l.getTrains()) {
+
+				t.clearCitizens();
+
+			}
+
+		}
+
+		for (Node n : nodes) {
+
+			n.clearCitizens();
+
+		}
+
+	}
+
+	// citizens walking in from spawn to nearest, or to one of the nearby stations if there are any
+	public void spawnNear(Node spawn, Node nearest, Node[] nearby) {
+
+		Node from = nearest;
+		SplittableRandom random = commandRandom.split();
+		int max = Citizen.SPAWN_MAX;
+		if (Citizen.SPAWN_RANDRANGE) { max *= random.nextDouble(); }
+		RouteBatch batch = new RouteBatch(max, routeRandom.split());
+		for (int i = 0; i < max; i++) {
+
+			if (nearby.length != 0) { from = sample(nearby, random); }
+			batch.add(spawn, from, sample(this.nodes, this.ridershipTotal, random));
+
+		}
+
+		if (asyncRouting) { spawnCitizensAsync(batch); } else { spawnCitizens(batch); }
+
+		Sim.Logger.log("User spawned in nodes near " + nearest);
+
+	}
+
+	// take a station out of service, or put it back
+	public void toggleStop(Node n) { if (n.isInService()) { closeStop(n); } else { reopenStop(n); } }
+
+	// routes a whole batch at once (in parallel) and adds a citizen for each route
+	private void spawnCitizens(RouteBatch batch) {
+		
+		ArrayList<Route> routes = batch.solve();
+		for (int i = 0; i < routes.size(); i++) {
+			
+			citizens.add(batch.getSpawn(i), routes.get(i));
+			
+		}
+		
+		spawnedCitizens += routes.size();
+		
+	}
+	
+	// same, but the routes are computed in the background and citizens wait at their spawn until theirs is ready
+	private void spawnCitizensAsync(RouteBatch batch) {
+		
+		ArrayList<CompletableFuture<Route>> routes = batch.submit();
+		for (int i = 0; i < routes.size(); i++) {
+			
+			citizens.add(batch.getSpawn(i), batch.getOrigin(i), routes.get(i));
+			
+		}
+		
+		spawnedCitizens += routes.size();
+		
+	}
+	
+	// project train movements into a new connection timetable once the current one is halfway through its horizon
+	private void updateTimetable() {
+		
+		if (!TIME_DEPENDENT_ROUTING || timetable != null && !timetable.isStale()) { return; }
+		
+		timetable = ConnectionScan.build(this, nodes, lines, staticRouteEngine, ConnectionScan.DEFAULT_HORIZON);
+		updateRouteEngine();
+		Sim.Logger.log("Built " + timetable);
+		
+	}
+	
+	// precomputed engines know nothing about closures, so while anything is out of service routes come from the live search
+	// choice sets are precomputed too, and know nothing of train times either
+	private void updateRouteEngine() {
+		
+		Node.setRouteChoices(isDisrupted() || timetable != null ? null : routeChoices);
+		
+		if (isDisrupted()) {
+			
+			Node.setRouteEngine(Node.getRouteCache());
+			
+		} else if (timetable != null) {
+			
+			Node.setRouteEngine(timetable);
+			
+		} else {
+			
+			Node.setRouteEngine(staticRouteEngine);
+			
+		}
+		
+	}
+	
+	public void addRider(int citizen) {
+		
+		if (citizens.hasFlag(citizen, CitizenStore.RIDER)) { return; }
+		long key = citizens.getRouteKey(citizen);
+		citizens.setFlag(citizen, CitizenStore.RIDER, true);
+		ridersByRoute.merge(key, 1, Integer::sum);
+		riderRoutes.add(key, citizens.getRoute(citizen), citizens.getRouteStart(citizen));
+		
+	}
+	
+	public void removeRider(int citizen) {
+		
+		if (!citizens.hasFlag(citizen, CitizenStore.RIDER)) { return; }
+		long key = citizens.getRouteKey(citizen);
+		citizens.setFlag(citizen, CitizenStore.RIDER, false);
+		if (ridersByRoute.merge(key, -1, Integer::sum) <= 0) {
+			
+			ridersByRoute.remove(key);
+			riderRoutes.remove(key);
+			
+		}
+		
+	}
+	
+	// line, stop and walking transfer outages
+	public void closeLine(Line l) {
+		
+		if (!l.isInService()) { return; }
+		l.setInService(false);
+		closedLines.add(l);
+		disrupt(RouteIndex.lineEdges(l), "line " + l.getID());
+		
+	}
+	
+	public void closeStop(Node n) {
+		
+		if (!n.isInService()) { return; }
+		n.setInService(false);
+		closedStops.add(n);
+		disrupt(RouteIndex.stopEdges(n), "stop " + n.getID());
+		
+	}
+	
+	public void closeTransfer(Node a, Node b) {
+		
+		Node.setTransferInService(a, b, false);
+		closedTransfers++;
+		disrupt(RouteIndex.transferEdges(a, b), "transfer " + a.getID() + " - " + b.getID());
+		
+	}
+	
+	public void reopenLine(Line l) { if (closedLines.remove(l)) { l.setInService(true); restore(); } }
+	public void reopenStop(Node n) { if (closedStops.remove(n)) { n.setInService(true); restore(); } }
+	public void reopenTransfer(Node a, Node b) { Node.setTransferInService(a, b, true); closedTransfers = Math.max(0, closedTransfers - 1); restore(); }
+	public boolean isDisrupted() { return !closedLines.isEmpty() || !closedStops.isEmpty() || closedTransfers > 0; }
+	
+	// drops cached routes over the given edges and reroutes only the citizens whose remaining path uses them
+	private void disrupt(ArrayList<Long> edges, String what) {
+		
+		int dropped = Node.getRouteCache().invalidate(edges);
+		updateRouteEngine();
+		
+		// riders are counted per route rather than listed, so one pass over the store finds those on an affected route
+		HashSet<Long> routes = riderRoutes.getRoutes(edges);
+		ArrayList<Integer> affected = new ArrayList<Integer>();
+		for (int i = 0; !routes.isEmpty() && i < citizens.size(); i++) {
+			
+			if (citizens.hasFlag(i, CitizenStore.RIDER) && routes.contains(citizens.getRouteKey(i)) && citizens.usesClosedEdge(i)) { affected.add(i); }
+			
+		}
+		
+		int abandoned = 0;
+		for (int c : affected) {
+			
+			removeRider(c);
+			if (citizens.reroute(c)) { addRider(c); } else { abandoned++; }
+			
+		}
+		
+		Sim.Logger.log("Closed " + what + ": dropped " + dropped + " cached routes, rerouted " + (affected.size() - abandoned) + " citizens, " + abandoned + " abandoned their trip");
+		
+	}
+	
+	// reopening can only make routes better, existing ones stay valid so only the cache is refreshed
+	private void restore() {
+		
+		Node.getRouteCache().clear();
+		updateRouteEngine();
+		
+	}
+	
+	// some utility methods used in setup/loop
+	public static Vector2 getMinMax(double[] arr) {
+
+		if (arr == null || arr.length == 0) { return null; }
+
+		double minInArr = arr[0];
+		double maxInArr = arr[0];
+		for (double i : arr) {
+
+			if (i < minInArr) { minInArr = i; }
+			if (i > maxInArr) { maxInArr = i; }
+
+		}
+
+		return new Vector2(minInArr, maxInArr);
+
+	}
+
+	public static boolean normalize(double[] arr, double min, double max, double minInArr, double maxInArr) {
+
+		double maxMinDiff = max - min;
+		double maxMinInArrDiff = maxInArr - minInArr;
+
+		if (maxMinInArrDiff + min == 0) { return false; }
+
+		for (int i = 0; i < arr.length; i++) {
+
+			arr[i] = maxMinDiff * (arr[i] - minInArr) / (maxMinInArrDiff) + min;
+
+		}
+
+		return true;
+
+	}
+	
+	public static Node sample(Node[] nodes, int sum, SplittableRandom random) {
+		
+		int rand = (int)(random.nextDouble() * sum);
+		int randCount = 0;
+		for (Node n : nodes) {
+			
+			if (randCount >= rand) {
+				
+				return n;
+				
+			}
+			randCount += n.getRidership();
+			
+		}
+		
+		return sample(nodes, random);
+		
+	}
+	
+	public static Node sample(Node[] nodes, SplittableRandom random) {
+		
+		return nodes[random.nextInt(nodes.length)];
+		
+	}
+
+	// copies out what the renderer needs, so drawing never reads live simulation state
+	public Snapshot snapshot() {
+
+		return new Snapshot(this);
+
+	}
+
+	public Line[] getLines() { return this.lines; }
+	public Node[] getNodes() { return this.nodes; }
+	public ArrayList<ArrayList<ArrayList<Drawable>>> getSegmentedNodes() { return this.segmentedNodes; }
+	public ComplexLine[] getComplexLines() { return this.complexLines; }
+	public Train[] getTrains() { return this.trains; }
+	public CitizenStore getCitizens() { return this.citizens; }
+	public int getRidershipTotal() { return this.ridershipTotal; }
+	public boolean isPaused() { return this.paused; }
+	public boolean isSpawning() { return this.spawnCitizens; }
+	public void setAsyncRouting(boolean async) { this.asyncRouting = async; }
+	public boolean isAsyncRouting() { return this.asyncRouting; }
+	public void setParallelTick(boolean parallel) { this.parallelTick = parallel; }
+	public boolean isParallelTick() { return this.parallelTick; }
+	public long getSeed() { return this.seed; }
+	public long getSpawnedCitizens() { return this.spawnedCitizens; }
+	public long getFinishedCitizens() { return this.finishedCitizens; }
+	public long getExpiredCitizens() { return this.expiredCitizens; }
+	public double getTimeIncrement() { return this.timeIncrement; }
+	public double getGlobalTime() { return this.globalTime; }
+	// the event engine keeps its own clock, see EventEngine
+	public void setGlobalTime(double globalTime) { this.globalTime = globalTime; }
+	public String toString() { return "City simulation running for " + globalTime + " ticks."; }
+
+	// one published frame, built on the simulation thread and only read afterwards
+	static class Snapshot {
+
+		public static final byte WALKING = 1;
+		public static final byte DEFAULT_COLOR = 2;
+		public static final byte SPAWN_COLOR = 4;
+
+		private final double globalTime;
+		private final double timeIncrement;
+		private final double[] stationSizes;
+		private final int[] stationWaiting;
+		private final boolean[] stationInService;
+		private final Line[] trainLines;
+		private final double[] trainXs;
+		private final double[] trainYs;
+		private final double[] trainSizes;
+		private final int[] trainRiders;
+		private final double[] citizenXs;
+		private final double[] citizenYs;
+		private final double[] citizenSizes;
+		private final byte[] citizenFlags;
+
+		private Snapshot(World world) {
+
+			this.globalTime = world.getGlobalTime();
+			this.timeIncrement = world.getTimeIncrement();
+
+			Node[] nodes = world.getNodes();
+			stationSizes = new double[nodes.length];
+			stationWaiting = new int[nodes.length];
+			stationInService = new boolean[nodes.length];
+			for (int i = 0; i < nodes.length; i++) {
+
+				stationSizes[i] = nodes[i].getSize();
+				stationWaiting[i] = nodes[i].getCitizens();
+				stationInService[i] = nodes[i].isInService();
+
+			}
+
+			Train[] trains = world.getTrains();
+			trainLines = new Line[trains.length];
+			trainXs = new double[trainLines.length];
+			trainYs = new double[trainLines.length];
+			trainSizes = new double[trainLines.length];
+			trainRiders = new int[trainLines.length];
+			for (int i = 0; i < trainLines.length; i++) {
+
+				Train t = trains[i];
+				trainLines[i] = t.getLine();
+				trainXs[i] = t.getX();
+				trainYs[i] = t.getY();
+				trainSizes[i] = t.getSize();
+				trainRiders[i] = t.getCitizens();
+
+			}
+
+			CitizenStore citizens = world.getCitizens();
+			citizenXs = new double[citizens.getActive()];
+			citizenYs = new double[citizenXs.length];
+			citizenSizes = new double[citizenXs.length];
+			citizenFlags = new byte[citizenXs.length];
+			int n = 0;
+			for (int i = 0; i < citizens.size(); i++) {
+
+				if (citizens.isFree(i)) { continue; }
+				TransitStatus status = citizens.getStatus(i);
+				citizenXs[n] = citizens.getX(i);
+				citizenYs[n] = citizens.getY(i);
+				citizenSizes[n] = Citizen.DEFAULT_CITIZEN_SIZE;
+				if (status == TransitStatus.WALKING || status == TransitStatus.LINE_TRANSFER) { citizenFlags[n] |= WALKING; }
+				citizenFlags[n] |= citizens.hasFlag(i, CitizenStore.ARRIVED) ? DEFAULT_COLOR : SPAWN_COLOR;
+				n++;
+
+			}
+
+		}
+
+		public double getGlobalTime() { return this.globalTime; }
+		public double getTimeIncrement() { return this.timeIncrement; }
+		public double getStationSize(int i) { return this.stationSizes[i]; }
+		public int getStationWaiting(int i) { return this.stationWaiting[i]; }
+		public boolean isStationInService(int i) { return this.stationInService[i]; }
+		public int getTrains() { return this.trainLines.length; }
+		public Line getTrainLine(int i) { return this.trainLines[i]; }
+		public Vector2 getTrainPos(int i) { return new Vector2(this.trainXs[i], this.trainYs[i]); }
+		public double getTrainSize(int i) { return this.trainSizes[i]; }
+		public int getTrainRiders(int i) { return this.trainRiders[i]; }
+		public int getCitizens() { return this.citizenXs.length; }
+		public Vector2 getCitizenPos(int i) { return new Vector2(this.citizenXs[i], this.citizenYs[i]); }
+		public double getCitizenSize(int i) { return this.citizenSizes[i]; }
+		public boolean hasCitizenFlag(int i, byte flag) { return (this.citizenFlags[i] & flag) != 0; }
+
+	}
+
+}
+
+// alternative to ticking the world, jumps from one timestamped event to the next instead of stepping everything by the time increment
+// trains, walk legs and transfers book their next event, waiting citizens and riders cost nothing until a train comes for them
+// citizens' own clocks are not advanced, each gets an expiry event MAX_TIME_ALIVE after setting off instead
+// the spawn cycle fires as often as it ends up firing under ticks, so both engines see the same demand
+// time-dependent routing mirrors trains tick for tick and is not kept up to date here
+class EventEngine {
+
+	public static final int TRAIN_ARRIVAL = 0;
+	public static final int DWELL_END = 1;
+	public static final int WALK_END = 2;
+	public static final int TRANSFER_END = 3;
+	public static final int EXPIRE = 4;
+	public static final int SPAWN_CYCLE = 5;
+
+	private World world;
+	private PriorityQueue<Event> queue;
+	private double now;
+	private double spawnCycle;
+	private long sequence;
+	private long handled;
+
+	public EventEngine(World world) {
+
+		this.world = world;
+		this.queue = new PriorityQueue<Event>();
+		this.now = world.getGlobalTime();
+		// ticks run the cycle on the first tick at or past SPAWN_INTERVAL
+		double dt = world.getTimeIncrement();
+		this.spawnCycle = dt <= 0 ? Citizen.SPAWN_INTERVAL : Math.ceil(Citizen.SPAWN_INTERVAL / dt) * dt;
+		// nothing would pick up citizens left waiting on a background route
+		world.setAsyncRouting(false);
+
+		for (Train t : world.getTrains()) {
+
+			add(t.getStatus() == TransitStatus.WAITING_AT_STATION ? DWELL_END : TRAIN_ARRIVAL, t.getIndex(), 0, t.getTimeToNextEvent());
+
+		}
+
+		CitizenStore citizens = world.getCitizens();
+		citizens.setEvents(this);
+		for (int i = 0; i < citizens.size(); i++) {
+
+			if (citizens.isFree(i)) { continue; }
+			schedule(EXPIRE, i, Citizen.MAX_TIME_ALIVE - citizens.getGlobalTime(i));
+			citizens.schedule(i);
+
+		}
+
+		add(SPAWN_CYCLE, 0, 0, spawnCycle);
+
+	}
+
+	// handles every event up to the given time and leaves the clock there
+	public void runUntil(double time) {
+
+		while (!queue.isEmpty() && queue.peek().time <= time) {
+
+			Event e = queue.poll();
+			now = e.time;
+			world.setGlobalTime(now);
+			handle(e);
+			handled++;
+
+		}
+
+		now = Math.max(now, time);
+		world.setGlobalTime(now);
+
+	}
+
+	private void handle(Event e) {
+
+		CitizenStore citizens = world.getCitizens();
+		switch (e.type) {
+
+		case TRAIN_ARRIVAL:
+			Train arriving = world.getTrains()[e.target];
+			arriving.arrive();
+			add(DWELL_END, e.target, 0, arriving.getTimeToNextEvent());
+			break;
+		case DWELL_END:
+			Train leaving = world.getTrains()[e.target];
+			leaving.depart();
+			add(TRAIN_ARRIVAL, e.target, 0, leaving.getTimeToNextEvent());
+			break;
+		case WALK_END:
+			// the slot may have been freed and handed to someone else since
+			if (citizens.getEpoch(e.target) == e.epoch && citizens.getStatus(e.target) == TransitStatus.WALKING) { citizens.endWalk(e.target); }
+			break;
+		case TRANSFER_END:
+			if (citizens.getEpoch(e.target) == e.epoch && citizens.getStatus(e.target) == TransitStatus.LINE_TRANSFER) { citizens.endTransfer(e.target); }
+			break;
+		case EXPIRE:
+			if (citizens.getEpoch(e.target) == e.epoch && !citizens.isFree(e.target) && citizens.getStatus(e.target) != TransitStatus.DESPAWN) { world.expireCitizen(e.target); }
+			break;
+		case SPAWN_CYCLE:
+			// finished trips are still only cleared out on the cycle, like with ticks
+			for (int i : citizens.takeFinished()) {
+
+				if (!citizens.isFree(i) && citizens.getStatus(i) == TransitStatus.DESPAWN) { world.finishCitizen(i); }
+
+			}
+
+			world.spawnRandomCitizens();
+			add(SPAWN_CYCLE, 0, 0, spawnCycle);
+			break;
+		default:
+			break;
+
+		}
+
+	}
+
+	public void schedule(int type, int citizen, double delay) { add(type, citizen, world.getCitizens().getEpoch(citizen), delay); }
+	private void add(int type, int target, int epoch, double delay) { queue.add(new Event(now + delay, sequence++, type, target, epoch)); }
+	public double getNow() { return this.now; }
+	public long getHandled() { return this.handled; }
+	public int getPending() { return this.queue.size(); }
+	public String toString() { return "EventEngine now=" + now + " handled=" + handled + " pending=" + queue.size(); }
+
+	// ties go in booking order
+	static class Event implements Comparable<Event> {
+
+		private final double time;
+		private final long sequence;
+		private final int type;
+		private final int target;
+		private final int epoch;
+
+		public Event(double time, long sequence, int type, int target, int epoch) {
+
+			this.time = time;
+			this.sequence = sequence;
+			this.type = type;
+			this.target = target;
+			this.epoch = epoch;
+
+		}
+
+		public int compareTo(Event o) {
+
+			int c = Double.compare(this.time, o.time);
+			return c != 0 ? c : Long.compare(this.sequence, o.sequence);
+
+		}
+
+	}
+
+}
+
+class Drawable {
+
+	final static double ZOOM_CONST = 0.05;
+	final static double ZOOM_MAX = 4;
+	final static double ZOOM_MIN = 0.1;
+	final static double PAN_CONST = 0.25;
+	final static double PAN_X_MINMAX = 50;
+	final static double PAN_Y_MINMAX = 50;
+
+	private static double zoom;
+	private static Vector2 pan;
+	private static Vector2 mousePan;
+
+	private String id;
+	private Vector2 pos;
+	private Vector3 color;
+	private double size;
+	
+	private int xSegmentIndex;
+	private int ySegmentIndex;
+
+	public Drawable(Vector2 pos, Vector3 color, double size) {
+
+		this("", pos, color, size);
+
+	}
+
+	public Drawable(String id, Vector2 pos, Vector3 color, double size) {
+
+		this.id = id;
+		this.pos = pos;
+		this.color = color;
+		this.size = size;
+
+	}
+	
+	public static double constrict(double d, double min, double max) {
+
+		return Math.min(Math.max(d, min), max);
+
+	}
+
+	public static void adjustPan(double x, double y) {
+
+		pan = pan.minus(new Vector2(x, y));
+		constrictPan(pan);
+
+	}
+
+	public static void constrictPan(Vector2 pan) {
 
 		pan.x = constrict(pan.x, -PAN_X_MINMAX, PAN_X_MINMAX);
 		pan.y = constrict(pan.y, -PAN_Y_MINMAX, PAN_Y_MINMAX);
 
 	}
 
-	public static void adjustZoom(double z) {
+	public static void adjustZoom(double z) {
+
+		zoom = Math.min(Math.max(zoom+z, ZOOM_MIN), ZOOM_MAX);
+
+	}
+	
+	public static double distanceBetween(Drawable d1, Drawable d2) {
+		
+		return Vector2.distanceBetween(d1.getPos(), d2.getPos());
+		
+	}
+
+	public static void drawCircle(App a, Drawable d) {
+
+		drawCircle(a, d, d.getColor());
+
+	}
+	
+	public static void drawCircle(App a, Drawable d, Vector3 col) {
+
+		drawCircle(a, d.getPos(), d.getSize(), col);
+
+	}
+
+	// snapshots only carry positions and sizes, not the drawables themselves
+	public static void drawCircle(App a, Vector2 pos, double size, Vector3 col) {
+
+		a.drawCircle(pos.plus(pan).plus(mousePan).times(zoom), size * zoom, col);
+
+	}
+
+	public static void drawLine(App a, Drawable d1, Drawable d2) {
+
+		drawLine(a, d1, d2, d2.getColor());
+
+	}
+
+	public static void drawLine(App a, Drawable d1, Drawable d2, Vector3 col) {
+
+		a.drawLine(d1.getPos().plus(pan).plus(mousePan).times(zoom), d2.getPos().plus(pan).plus(mousePan).times(zoom), col);
+
+	}
+
+	public static void drawComplexLine(App a, ComplexLine cl) {
+
+		drawComplexLine(a, cl, cl.getColor());
+
+	}
+
+	public static void drawComplexLine(App a, ComplexLine cl, Vector3 col) {
+
+		for (int i = 1; i < cl.getNodesSize(); i++) {
+
+			drawLine(a, cl.getNode(i-1), cl.getNode(i), col);
+
+		}
+
+	}
+
+	public static void drawPath(App a, ArrayList<Node.PathWrapper> path) {
+
+		drawCircle(a, path.get(0).getNode());
+		for (int i = 1; i < path.size(); i++) {
+
+			drawCircle(a, path.get(i).getNode(), Vector3.red);
+			drawLine(a, path.get(i-1).getNode(), path.get(i).getNode(), Vector3.red);
+
+		}
+
+	}
+
+	public static void drawString(App a, Drawable d, String str, int size, boolean centered) {
+
+		drawString(a, d, str, d.getColor(), size, centered);
+
+	}
+
+	public static void drawString(App a, Drawable d, String str, Vector3 col, int size, boolean centered) {
+
+		drawString(a, d.pos, str, col, size, centered);
+
+	}
+
+	public static void drawString(App a, Vector2 pos, String str, Vector3 col, int size, boolean centered) {
+
+		a.drawString(str, pos.plus(pan).plus(mousePan).times(zoom), col, (int) Math.ceil(size * zoom), centered);
+
+	}
+
+	public static void resetPanZoom() { pan = new Vector2(); mousePan = new Vector2(); zoom = 1; }
+	public static void setPan(Vector2 p) { constrictPan(p); pan = p; }
+	public static void setMousePan(Vector2 mp) { constrictPan(mp); mousePan = mp; }
+	public static void setZoom(double z) { zoom = z; }
+	public static Vector2 getPan() { return pan; }
+	public static Vector2 getMousePan() { return mousePan; }
+	public static double getZoom() { return zoom; }
+
+	public void setID(String id) { this.id = id; }
+	public void setPos(Drawable d) { this.pos = d.getPos(); }
+	public void setPos(Vector2 pos) { this.pos = pos; }
+	public void setPos(double x, double y) { this.pos.x = x; this.pos.y = y; }
+	public void setX(double x) { this.pos.x = x; }
+	public void setY(double y) { this.pos.y = y; }
+	public void setSegmentIndex(int x, int y) { this.xSegmentIndex = x; this.ySegmentIndex = y; }
+	public void setColor(Vector3 col) { this.color = col; }
+	public void setSize(double size) { this.size = size; }
+	public String getID() { return this.id; }
+	public Vector2 getPos() { return this.pos; }
+	public double getX() { return this.pos.x; }
+	public double getY() { return this.pos.y; }
+	public int getXSegmentIndex() { return this.xSegmentIndex; }
+	public int getYSegmentIndex() { return this.ySegmentIndex; }
+	public Vector3 getColor() { return this.color; }
+	public double getSize() { return this.size; }
+	public String toString() { return "Drawable id=" + this.id + " pos=" + this.pos; }
+
+}
+
+class CitizenContainer extends Drawable {
+
+	public static final double MAX_SIZE = Node.DEFAULT_NODE_SIZE * 5;
+	
+	private int numCitizens;
+	
+	public CitizenContainer(String id, Vector2 pos, Vector3 color, double size) {
+	
+		super(id, pos, color, size);
+		this.numCitizens = 0;
+	
+	}
+	
+	public void addCitizen() { this.numCitizens++; }
+	public void removeCitizen() { this.numCitizens = Math.max(0, --this.numCitizens); }
+	public void clearCitizens() { this.numCitizens = 0; }
+	public int getCitizens() { return this.numCitizens; }
+	public double getSize() { return Math.min(MAX_SIZE, this.numCitizens * Citizen.DEFAULT_CONTAINER_CITIZEN_SIZE + super.getSize()); }
+	
+}
+
+class Node extends CitizenContainer {
+
+	public static final double DEFAULT_NODE_SIZE = 0.5;
+	public static final double DEFAULT_TRANSFER_WEIGHT = 16;
+	public static final double DEFAULT_TRANSFER_MAX_DIST = 2;
+	public static final double DEFAULT_CONST_STOP_PENALTY = 2;
+	public static final double DEFAULT_CONST_TRANSFER_PENALTY = 24;
+
+	private static final RouteCache routeCache = new RouteCache(RouteCache.DEFAULT_CAPACITY, PathFinder.ENGINE);
+	// swapped by the simulation thread and read by background route workers (see RouteBatch and RouteService)
+	private static volatile RouteChoices routeChoices = null;
+	private static volatile RouteEngine routeEngine = routeCache;
+
+	private HashMap<PathWrapper, Double> neighbors;
+	private HashMap<String, Train> currentTrains;
+
+	// ridership of -1 indicates that it is not a station
+	private double ridership;
+	// dense index into the station network, -1 if not part of it
+	private int index;
+	// stations and walking transfers can be taken out of service at runtime (see World.closeStop and World.closeTransfer)
+	// route workers read these off the simulation thread, so the closed transfers are replaced by an updated copy rather than changed in place
+	private volatile boolean inService;
+	private volatile Set<Node> closedTransfers;
+	// citizens waiting here by the line they will ride and their next stop, in arrival order, see CitizenStore.board
+	private HashMap<Long, ArrayDeque<Integer>> boardingQueues;
+
+	public Node(Vector2 pos, Vector3 color, int ridership) {
+
+		this("", pos, color, ridership);
+
+	}
+
+	public Node(String id, Vector2 pos, Vector3 color, int ridership) {
+
+		super(id, pos, color, DEFAULT_NODE_SIZE);
+		clear();
+		this.ridership = ridership; this.index = -1; this.inService = true;
+
+	}
+
+	public void addNeighbor(Node n, double d, Line l) {
+
+		if (n == this) { return; }
+		neighbors.put(new PathWrapper(n, l), d);
+
+	}
+	
+	public void addNearbyNeighbors(ArrayList<ArrayList<ArrayList<Drawable>>> segmentedNodes) {
+		
+		addNearbyNeighbors(segmentedNodes, true, Node.DEFAULT_TRANSFER_MAX_DIST);
+		
+	}
+	
+	public void addNearbyNeighbors(ArrayList<ArrayList<ArrayList<Drawable>>> segmentedNodes, boolean addToBoth, double range) {
+		
+		for (int x = -1; x <= 1; x++) {
+			
+			for (int y = -1; y <= 1; y++) {
+				
+				for (Drawable n : segmentedNodes.get(getXSegmentIndex()+x).get(getYSegmentIndex()+y)) {
+					
+					if (!n.getClass().equals(Node.class)) { continue; }
+					Node nNode = (Node) n;
+					double dist = Drawable.distanceBetween(this, n);
+					if (nNode.isStation() && dist <= range) {
+						
+						if (addToBoth) {
+							
+							addNeighborPair(this, nNode, dist, Line.WALKING_LINE);
+							
+						} else {
+							
+							this.addNeighbor(nNode, dist, Line.WALKING_LINE);
+							
+						}
+						
+					}
+					
+				}
+				
+			}
+			
+		}
+		
+	}
+
+	public static void addNeighborPair(Node a, Node b, double dist, Line l) {
+
+		a.addNeighbor(b, dist, l);
+		b.addNeighbor(a, dist, l);
+
+	}
+
+	// pathfinding, see PathFinder for the search itself
+	public static ArrayList<PathWrapper> findPath(Node start, Node end) {
+
+		return routeEngine.findPath(start, end);
+
+	}
+	
+	// whether the edge from a to the given neighbor can currently be used
+	public static boolean isOpen(Node a, PathWrapper edge) {
+
+		return isOpen(a, edge.getNode(), edge.getLine());
+
+	}
+
+	public static boolean isOpen(Node a, Node b, Line l) {
+
+		if (!a.inService || !b.inService || !l.isInService()) { return false; }
+		Set<Node> closed = a.closedTransfers;
+		return l != Line.WALKING_LINE || closed == null || !closed.contains(b);
+
+	}
+
+	public static void setTransferInService(Node a, Node b, boolean inService) {
+
+		for (Node[] pair : new Node[][] { { a, b }, { b, a } }) {
+
+			HashSet<Node> closed = pair[0].closedTransfers == null ? new HashSet<Node>() : new HashSet<Node>(pair[0].closedTransfers);
+			if (inService) { closed.remove(pair[1]); } else { closed.add(pair[1]); }
+			pair[0].closedTransfers = Collections.unmodifiableSet(closed);
+
+		}
+
+	}
+
+	// route for someone walking in from spawn, who will only reach start once the walk is done
+	public static Route findWalkingRoute(Node spawn, Node start, Node end) {
+		
+		return Route.of(routeEngine.findPath(start, end, walkDelay(spawn, start)));
+		
+	}
+	
+	// one-to-many version of the above, a null spawn means setting off from start straight away
+	public static ArrayList<ArrayList<PathWrapper>> findWalkingPaths(Node spawn, Node start, List<Node> ends) {
+		
+		return routeEngine.findPaths(start, ends, spawn == null ? 0 : walkDelay(spawn, start));
+		
+	}
+	
+	private static double walkDelay(Node spawn, Node start) { return Drawable.distanceBetween(spawn, start) / Citizen.DEFAULT_CITIZEN_SPEED; }
+
+	public void enqueueBoarding(int line, int nextStop, int citizen) {
+
+		if (boardingQueues == null) { boardingQueues = new HashMap<Long, ArrayDeque<Integer>>(); }
+		boardingQueues.computeIfAbsent(boardingKey(line, nextStop), k -> new ArrayDeque<Integer>()).add(citizen);
+
+	}
+
+	public void dequeueBoarding(int line, int nextStop, int citizen) {
+
+		ArrayDeque<Integer> queue = getBoardingQueue(line, nextStop);
+		if (queue != null) { queue.remove(citizen); }
+
+	}
+
+	private static long boardingKey(int line, int nextStop) { return ((long) line << 32) | (nextStop & 0xffffffffL); }
+
+	public void addTrain(Train train) { if (!this.currentTrains.containsKey(train.getID())) { this.currentTrains.put(train.getID(), train); } }
+	public void removeTrain(Train train) { this.currentTrains.remove(train.getID()); }
+	public void clear() { clearNeighbors(); clearTrains(); }
+	public void clearNeighbors() { this.neighbors = new HashMap<PathWrapper, Double>(); }
+	public void clearTrains() { this.currentTrains = new HashMap<String, Train>(World.DEFAULT_TRAIN_ALLOCATION); }
+	public void setRidership(double d) { this.ridership = d; }
+	public void setIndex(int index) { this.index = index; }
+	public void setInService(boolean inService) { this.inService = inService; }
+	public HashMap<PathWrapper, Double> getNeighbors() { return this.neighbors; }
+	public Node[] getNeighboringNodes() { Node[] nodes = new Node[this.getNeighbors().size()]; int i = 0; for (PathWrapper pw : this.getNeighbors().keySet()) { nodes[i++] = pw.getNode(); } return nodes; }
+	public HashMap<String, Train> getCurrentTrains() { return this.currentTrains; }
+	public ArrayDeque<Integer> getBoardingQueue(int line, int nextStop) { return this.boardingQueues == null ? null : this.boardingQueues.get(boardingKey(line, nextStop)); }
+	public void clearBoardingQueues() { this.boardingQueues = null; }
+	public static RouteCache getRouteCache() { return routeCache; }
+	public static RouteEngine getRouteEngine() { return routeEngine; }
+	public static void setRouteEngine(RouteEngine engine) { routeEngine = engine; }
+	public static RouteChoices getRouteChoices() { return routeChoices; }
+	public static void setRouteChoices(RouteChoices choices) { routeChoices = choices; }
+	public double getRidership() { return this.ridership; }
+	public int getIndex() { return this.index; }
+	public boolean isInService() { return this.inService; }
+	public boolean isStation() { return this.ridership >= 0; }
+	public String toString() { return "Node id=" + this.getID() + " pos=" + this.getPos(); }
+
+	static class PathWrapper {
+
+		private Node node;
+		private Line line;
+
+		public PathWrapper(Node node, Line line) {
+
+			this.node = node;
+			this.line = line;
+
+		}
+
+		public Node getNode() { return this.node; }
+		public Line getLine() { return this.line; }
+		public String toString() { return "PathWrapper line=" + line.getID() + " node=" + node; }
+
+	}
+
+}
+
+// anything that can answer station-to-station route queries in the ArrayList<Node.PathWrapper> format citizens follow
+interface RouteEngine {
+
+	ArrayList<Node.PathWrapper> findPath(Node start, Node end);
+
+	// for someone who will only be at start after delay, only time-dependent engines care
+	default ArrayList<Node.PathWrapper> findPath(Node start, Node end, double delay) { return findPath(start, end); }
+
+	// routes from start to each of ends in order, engines that can answer them all from a single search override this
+	default ArrayList<ArrayList<Node.PathWrapper>> findPaths(Node start, List<Node> ends, double delay) {
+
+		ArrayList<ArrayList<Node.PathWrapper>> paths = new ArrayList<ArrayList<Node.PathWrapper>>(ends.size());
+		for (Node end : ends) { paths.add(findPath(start, end, delay)); }
+		return paths;
+
+	}
+
+	// whether routes depend on when the rider sets off
+	default boolean isTimeDependent() { return false; }
+
+}
+
+// all-pairs next-hop table, routes are rebuilt by walking hops so queries need no search at all
+// rows are indexed by destination, built from one shortest-path tree per destination over the line-expanded graph (see StationGraph)
+// hops go between (station, line) vertices so a rider keeps to the line the route was planned on, the entry vertex is the best line to start on
+// the table is persisted next to the network data and only rebuilt when the network fingerprint changes
+class NextHopTable implements RouteEngine {
+
+	public static final int MAX_STATIONS = 4096;
+	public static final String DEFAULT_FILE_NAME = "routing_table.bin";
+	private static final int FILE_MAGIC = 0x4e485432;
+	private static final byte WALKING_LINE_ID = -1;
+
+	private Node[] nodes;
+	private Line[] lines;
+	private StationGraph graph;
+	private long fingerprint;
+	private short[][] entry;
+	private short[][] nextVertex;
+
+	private NextHopTable(Node[] nodes, Line[] lines) {
+
+		this.graph = PathFinder.getGraph();
+		if (!fits(nodes, lines, graph)) { throw new IllegalArgumentException("Network too big for a next-hop table: " + nodes.length + " stations, " + graph.getNumVertices() + " vertices"); }
+		this.nodes = nodes;
+		this.lines = lines;
+		this.fingerprint = fingerprint(nodes, lines);
+		this.entry = new short[nodes.length][nodes.length];
+		this.nextVertex = new short[nodes.length][graph.getNumVertices()];
+
+	}
+
+	// vertex ids are stored as shorts and line ids as bytes, a line-expanded graph can outgrow them well before MAX_STATIONS
+	public static boolean fits(Node[] nodes, Line[] lines, StationGraph graph) {
+
+		return nodes.length <= MAX_STATIONS && graph.getNumVertices() <= Short.MAX_VALUE && lines.length < Byte.MAX_VALUE;
+
+	}
+
+	// expects PathFinder.setNetwork and setGraph to have been called with the same nodes and lines
+	public static NextHopTable build(Node[] nodes, Line[] lines) {
+
+		NextHopTable table = new NextHopTable(nodes, lines);
+		int[] vertexOffsets = table.graph.getVertexOffsets();
+		int numVertices = table.graph.getNumVertices();
+
+		// one independent single-source search per destination, PathFinder keeps its scratch per-thread
+		IntStream.range(0, nodes.length).parallel().forEach(t -> {
+
+			int[] parent = new int[numVertices];
+			double[] dist = new double[numVertices];
+			PathFinder.buildTree(nodes[t], parent, dist);
+
+			for (int v = 0; v < numVertices; v++) { table.nextVertex[t][v] = (short) parent[v]; }
+			for (int s = 0; s < nodes.length; s++) {
+
+				// -1 marks an unreachable station (or one without any edges)
+				int best = -1;
+				for (int v = vertexOffsets[s]; v < vertexOffsets[s+1]; v++) { if (dist[v] != Double.POSITIVE_INFINITY && (best < 0 || dist[v] < dist[best])) { best = v; } }
+				table.entry[t][s] = (short) best;
+
+			}
+
+		});
+
+		return table;
+
+	}
+
+	// loads the table saved next to the given network resource, rebuilding (and saving) it if missing or stale
+	public static NextHopTable loadOrBuild(URL networkResource, Node[] nodes, Line[] lines) {
+
+		Path file = null;
+		try {
+
+			if (networkResource != null && networkResource.getProtocol().equals("file")) {
+
+				file = Paths.get(networkResource.toURI()).resolveSibling(DEFAULT_FILE_NAME);
+
+			}
+
+		} catch (URISyntaxException e) { Sim.Logger.log("Could not resolve routing table location"); }
+
+		if (file != null && Files.exists(file)) {
+
+			try {
+
+				NextHopTable table = load(file, nodes, lines);
+				if (table != null) {
+
+					Sim.Logger.log("Loaded next-hop routing table from " + file);
+					return table;
+
+				}
+
+				Sim.Logger.log("Routing table at " + file + " does not match the network, rebuilding");
+
+			} catch (IOException e) { Sim.Logger.log("Could not load routing table"); e.printStackTrace(); }
+
+		}
+
+		NextHopTable table = build(nodes, lines);
+		Sim.Logger.log("Built " + nodes.length + "x" + nodes.length + " next-hop routing table");
+
+		if (file != null) {
+
+			try {
+
+				table.save(file);
+				Sim.Logger.log("Saved next-hop routing table to " + file);
+
+			} catch (IOException e) { Sim.Logger.log("Could not save routing table"); e.printStackTrace(); }
+
+		}
+
+		return table;
+
+	}
+
+	public static NextHopTable load(Path file, Node[] nodes, Line[] lines) throws IOException {
+
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+
+			if (in.readInt() != FILE_MAGIC || in.readInt() != nodes.length || in.readInt() != PathFinder.getGraph().getNumVertices() || in.readLong() != fingerprint(nodes, lines)) { return null; }
+
+			NextHopTable table = new NextHopTable(nodes, lines);
+			for (int t = 0; t < nodes.length; t++) {
+
+				for (int s = 0; s < table.entry[t].length; s++) { table.entry[t][s] = in.readShort(); }
+				for (int v = 0; v < table.nextVertex[t].length; v++) { table.nextVertex[t][v] = in.readShort(); }
+
+			}
+
+			return table;
+
+		}
+
+	}
+
+	public void save(Path file) throws IOException {
+
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file)))) {
+
+			out.writeInt(FILE_MAGIC);
+			out.writeInt(nodes.length);
+			out.writeInt(graph.getNumVertices());
+			out.writeLong(fingerprint);
+			for (int t = 0; t < nodes.length; t++) {
+
+				for (short v : entry[t]) { out.writeShort(v); }
+				for (short v : nextVertex[t]) { out.writeShort(v); }
+
+			}
+
+		}
+
+	}
+
+	public ArrayList<Node.PathWrapper> findPath(Node start, Node end) {
+
+		int current = start.getIndex();
+		int target = end.getIndex();
+		if (current < 0 || target < 0) { return PathFinder.findPath(start, end); }
+
+		ArrayList<Node.PathWrapper> path = new ArrayList<Node.PathWrapper>();
+		if (current == target) { return path; }
+
+		int[] vertexStations = graph.getVertexStations();
+		int[] vertexLines = graph.getVertexLines();
+		short[] hops = nextVertex[target];
+		int vertex = entry[target][current];
+		if (vertex < 0) { return null; } // no path
+
+		// hops within a station are transfers, which only change the line the station is left on
+		while (vertexStations[vertex] != target) {
+
+			int next = hops[vertex];
+			if (vertexStations[next] != vertexStations[vertex]) { path.add(new Node.PathWrapper(nodes[vertexStations[vertex]], graph.getLine(vertexLines[vertex]))); }
+			vertex = next;
+
+		}
+
+		path.add(new Node.PathWrapper(end, graph.getLine(vertexLines[vertex])));
+		return path;
+
+	}
+
+	private static byte lineID(Line l) { return l == Line.WALKING_LINE ? WALKING_LINE_ID : (byte) l.getIndex(); }
+
+	// order-independent hash of stations and edges, neighbor maps don't iterate in a stable order between runs
+	// the graph layout and the weight constants go in too, the transfer penalty is only ever applied by StationGraph.expand
+	public static long fingerprint(Node[] nodes, Line[] lines) {
+
+		long hash = 31L * nodes.length + lines.length;
+		hash += mix(StationGraph.FORMAT_VERSION);
+		hash += mix(mix(Double.doubleToLongBits(Node.DEFAULT_CONST_TRANSFER_PENALTY)) ^ Double.doubleToLongBits(Node.DEFAULT_CONST_STOP_PENALTY));
+		hash += mix(Double.doubleToLongBits(Node.DEFAULT_TRANSFER_MAX_DIST));
+		for (Node n : nodes) {
+
+			hash += mix(n.getIndex() * 31L + n.getID().hashCode());
+			for (Map.Entry<Node.PathWrapper, Double> edge : n.getNeighbors().entrySet()) {
+
+				long h = ((long) n.getIndex() << 40) ^ ((long) edge.getKey().getNode().getIndex() << 16) ^ lineID(edge.getKey().getLine());
+				hash += mix(h ^ mix(Double.doubleToLongBits(edge.getValue())));
+
+			}
+
+		}
+
+		return hash;
+
+	}
+
+	private static long mix(long h) {
+
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		return h ^ (h >>> 33);
+
+	}
+
+	public long getFingerprint() { return this.fingerprint; }
+	public int getSize() { return this.nodes.length; }
+	public String toString() { return "NextHopTable size=" + nodes.length + " fingerprint=" + Long.toHexString(fingerprint); }
+
+}
+
+// all-stations travel times and transfer counts along the routes the simulation would pick, from one shortest-path tree per destination in parallel
+// times are in simulation ticks at default speeds (riding, dwelling at every stop, walking and changing lines), waiting for trains is left out
+// the matrix is written as a binary file and isochrone bands per station as csv, both next to the network data (see export)
+class TravelTimeMatrix {
+
+	public static final String DEFAULT_MATRIX_FILE_NAME = "travel_times.bin";
+	public static final String DEFAULT_ISOCHRONE_FILE_NAME = "isochrones.csv";
+	public static final double[] DEFAULT_ISOCHRONE_BANDS = { 500, 1000, 1500, 2000 };
+	private static final int FILE_MAGIC = 0x54544d31;
+
+	private Node[] nodes;
+	// [origin][destination], infinity and -1 where unreachable
+	private float[][] times;
+	private short[][] transfers;
+
+	private TravelTimeMatrix(Node[] nodes) {
+
+		this.nodes = nodes;
+		this.times = new float[nodes.length][nodes.length];
+		this.transfers = new short[nodes.length][nodes.length];
+
+	}
+
+	// expects PathFinder.setNetwork and setGraph to have been called with the same nodes
+	public static TravelTimeMatrix build(Node[] nodes) {
+
+		TravelTimeMatrix matrix = new TravelTimeMatrix(nodes);
+		StationGraph graph = PathFinder.getGraph();
+		int numVertices = graph.getNumVertices();
+		int[] vertexOffsets = graph.getVertexOffsets();
+
+		// each tree fills one destination column
+		IntStream.range(0, nodes.length).parallel().forEach(t -> {
+
+			int[] parent = new int[numVertices];
+			double[] dist = new double[numVertices];
+			double[] time = new double[numVertices];
+			int[] changes = new int[numVertices];
+			boolean[] known = new boolean[numVertices];
+			PathFinder.buildTree(nodes[t], parent, dist);
+
+			for (int s = 0; s < nodes.length; s++) {
+
+				int best = -1;
+				for (int v = vertexOffsets[s]; v < vertexOffsets[s+1]; v++) { if (dist[v] != Double.POSITIVE_INFINITY && (best < 0 || dist[v] < dist[best])) { best = v; } }
+
+				if (best < 0) {
+
+					matrix.times[s][t] = s == t ? 0 : Float.POSITIVE_INFINITY;
+					matrix.transfers[s][t] = (short) (s == t ? 0 : -1);
+					continue;
+
+				}
+
+				matrix.resolve(graph, parent, best, time, changes, known);
+				matrix.times[s][t] = (float) time[best];
+				matrix.transfers[s][t] = (short) changes[best];
+
+			}
+
+		});
+
+		return matrix;
+
+	}
+
+	// time and transfers from vertex to the root of the tree, filled in for every vertex on the way
+	private void resolve(StationGraph graph, int[] parent, int vertex, double[] time, int[] changes, boolean[] known) {
+
+		ArrayDeque<Integer> chain = new ArrayDeque<Integer>();
+		for (int v = vertex; !known[v]; v = parent[v]) {
+
+			if (parent[v] < 0) {
+
+				known[v] = true;
+				break;
+
+			}
+
+			chain.push(v);
+
+		}
+
+		int[] vertexStations = graph.getVertexStations();
+		while (!chain.isEmpty()) {
+
+			int v = chain.pop();
+			int p = parent[v];
+			time[v] = time[p] + arcTime(graph, v, p);
+			// a walking transfer steps off the line and back on at the next station, only the first step is a change
+			changes[v] = changes[p] + (vertexStations[v] == vertexStations[p] && graph.getVertexLines()[v] != StationGraph.WALKING_LINE_ID ? 1 : 0);
+			known[v] = true;
+
+		}
+
+	}
+
+	// time to cross the arc between two vertices, a line change if they are at the same station (free when walking on or off)
+	private static double arcTime(StationGraph graph, int from, int to) {
+
+		int[] vertexLines = graph.getVertexLines();
+		boolean walking = vertexLines[from] == StationGraph.WALKING_LINE_ID;
+		if (graph.getVertexStations()[from] == graph.getVertexStations()[to]) { return walking || vertexLines[to] == StationGraph.WALKING_LINE_ID ? 0 : Citizen.DEFAULT_UNLOAD_TIME; }
+		double weight = graph.getArcWeights()[graph.getArc(from, to)];
+		if (walking) { return weight / Citizen.DEFAULT_CITIZEN_SPEED; }
+		// ride weights carry the routing stop penalty on top of the distance (see Line.rearrangeStops)
+		return (weight - Node.DEFAULT_CONST_STOP_PENALTY) / Train.DEFAULT_TRAIN_SPEED + Train.DEFAULT_STOP_DURATION;
+
+	}
+
+	// estimated time along a single route, on the same terms as the matrix
+	public static double travelTime(Route route) {
+
+		StationGraph graph = PathFinder.getGraph();
+		double time = 0;
+		int previous = -1;
+		for (int i = 0; i < route.size() - 1; i++) {
+
+			int from = graph.getVertex(route.getStation(i), route.getLineID(i));
+			int to = graph.getVertex(route.getStation(i+1), route.getLineID(i));
+			if (previous >= 0 && previous != from) { time += arcTime(graph, previous, from); }
+			time += arcTime(graph, from, to);
+			previous = to;
+
+		}
+
+		return time;
+
+	}
+
+	// builds the matrix and writes both files next to the given network resource, returns false if there is nowhere to write them
+	public static boolean export(URL networkResource, Node[] nodes) {
+
+		Path dir = null;
+		try {
+
+			if (networkResource != null && networkResource.getProtocol().equals("file")) { dir = Paths.get(networkResource.toURI()).getParent(); }
+
+		} catch (URISyntaxException e) { Sim.Logger.log("Could not resolve travel time export location"); }
+
+		return dir != null && export(dir, nodes);
+
+	}
+
+	public static boolean export(Path dir, Node[] nodes) {
+
+		return export(dir.resolve(DEFAULT_MATRIX_FILE_NAME), dir.resolve(DEFAULT_ISOCHRONE_FILE_NAME), nodes);
+
+	}
+
+	public static boolean export(Path matrixFile, Path isochroneFile, Node[] nodes) {
+
+		TravelTimeMatrix matrix = build(nodes);
+		try {
+
+			matrix.save(matrixFile);
+			matrix.saveIsochrones(isochroneFile, DEFAULT_ISOCHRONE_BANDS);
+			Sim.Logger.log("Exported " + matrix + " to " + matrixFile + " and " + isochroneFile);
+			return true;
+
+		} catch (IOException e) { Sim.Logger.log("Could not export travel times"); e.printStackTrace(); }
+
+		return false;
+
+	}
+
+	// station ids, then the time matrix and the transfer matrix row by row (origin major)
+	public void save(Path file) throws IOException {
+
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file)))) {
+
+			out.writeInt(FILE_MAGIC);
+			out.writeInt(nodes.length);
+			for (Node n : nodes) { out.writeUTF(n.getID()); }
+			for (float[] row : times) { for (float f : row) { out.writeFloat(f); } }
+			for (short[] row : transfers) { for (short c : row) { out.writeShort(c); } }
+
+		}
+
+	}
+
+	// one line per origin and band: origin index,origin id,upper bound,number of stations,indices of stations reachable within the bound (separated by |)
+	// station ids aren't unique (there are several 14th Sts), indices are the order of stations_data.csv and of the matrix file
+	public void saveIsochrones(Path file, double[] bands) throws IOException {
+
+		try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(file))) {
+
+			for (int s = 0; s < nodes.length; s++) {
+
+				for (double band : bands) {
+
+					StringBuilder reachable = new StringBuilder();
+					int count = 0;
+					for (int t = 0; t < nodes.length; t++) {
+
+						if (t == s || times[s][t] > band) { continue; }
+						if (count++ > 0) { reachable.append('|'); }
+						reachable.append(t);
+
+					}
+
+					out.println(s + "," + nodes[s].getID() + "," + band + "," + count + "," + reachable);
+
+				}
+
+			}
+
+		}
+
+	}
+
+	public float getTime(Node origin, Node destination) { return this.times[origin.getIndex()][destination.getIndex()]; }
+	public int getTransfers(Node origin, Node destination) { return this.transfers[origin.getIndex()][destination.getIndex()]; }
+	public int getSize() { return this.nodes.length; }
+	public String toString() { return "TravelTimeMatrix size=" + nodes.length + "x" + nodes.length; }
+
+}
+
+// local HTTP/JSON route queries against the loaded network, e.g. GET /route?from=0&to=42 or /route?fromX=1.5&fromY=-3&toX=20&toY=7
+// stations are given by index (the order of stations_data.csv) or id, coordinates are in world units and walk to and from the nearest station
+// requests are handled on a cached pool of daemon threads (Java 17 has no virtual threads), route engines keep their search state per-thread
+// and the frozen StationGraph is never modified, so requests don't block each other or the simulation
+class RouteService {
+
+	public static final int DEFAULT_PORT = 8765;
+	// stopping waits this many seconds at most for requests in flight
+	public static final int STOP_DELAY = 1;
+
+	private HttpServer server;
+	private ExecutorService executor;
+	private Node[] nodes;
+	private HashMap<String, Node> stationsById;
+
+	public RouteService(Node[] nodes) {
+
+		this.nodes = nodes;
+		this.stationsById = new HashMap<String, Node>();
+		// ids aren't unique, the first station with an id wins
+		for (Node n : nodes) { stationsById.putIfAbsent(n.getID(), n); }
+
+	}
+
+	public void start(int port) throws IOException {
+
+		executor = Executors.newCachedThreadPool(r -> {
+
+			Thread t = new Thread(r, "route-service");
+			t.setDaemon(true);
+			return t;
+
+		});
+
+		server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+		server.createContext("/route", this::handleRoute);
+		server.setExecutor(executor);
+		server.start();
+		Sim.Logger.log("Route service listening on " + server.getAddress());
+
+	}
+
+	public void stop() {
+
+		if (server != null) { server.stop(STOP_DELAY); }
+		if (executor != null) { executor.shutdown(); }
+		server = null;
+		executor = null;
+
+	}
+
+	private void handleRoute(HttpExchange exchange) throws IOException {
+
+		try {
+
+			HashMap<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+			Vector2 fromPos = position(query, "from");
+			Vector2 toPos = position(query, "to");
+			Node from = fromPos == null ? station(query.get("from")) : nearestStation(fromPos);
+			Node to = toPos == null ? station(query.get("to")) : nearestStation(toPos);
+			if (from == null || to == null) {
+
+				respond(exchange, 400, "{\"error\":\"unknown or missing origin or destination\"}");
+				return;
+
+			}
+
+			Route route = from == to ? null : Route.of(Node.findPath(from, to));
+			if (from != to && route == null) {
+
+				respond(exchange, 404, "{\"error\":\"no route\"}");
+				return;
+
+			}
+
+			double walkTime = 0;
+			if (fromPos != null) { walkTime += Vector2.distanceBetween(fromPos, from.getPos()) / Citizen.DEFAULT_CITIZEN_SPEED; }
+			if (toPos != null) { walkTime += Vector2.distanceBetween(to.getPos(), toPos) / Citizen.DEFAULT_CITIZEN_SPEED; }
+			respond(exchange, 200, toJson(from, to, route, walkTime));
+
+		} catch (NumberFormatException e) {
+
+			respond(exchange, 400, "{\"error\":" + quote("bad number: " + e.getMessage()) + "}");
+
+		} catch (RuntimeException e) {
+
+			e.printStackTrace();
+			respond(exchange, 500, "{\"error\":" + quote(e.toString()) + "}");
+
+		}
+
+	}
+
+	private String toJson(Node from, Node to, Route route, double walkTime) {
+
+		StringBuilder json = new StringBuilder();
+		double rideTime = route == null ? 0 : TravelTimeMatrix.travelTime(route);
+		int transfers = 0;
+		json.append("{\"from\":").append(station(from)).append(",\"to\":").append(station(to));
+		json.append(",\"time\":").append(rideTime + walkTime).append(",\"walkTime\":").append(walkTime);
+		json.append(",\"steps\":[");
+		for (int i = 0; route != null && i < route.size(); i++) {
+
+			if (i > 0) { json.append(','); }
+			// walking off one line and onto another is a single transfer
+			if (i > 0 && i < route.size() - 1 && route.getLineID(i) != route.getLineID(i-1) && route.getLineID(i-1) != StationGraph.WALKING_LINE_ID) { transfers++; }
+			json.append("{\"station\":").append(station(route.getNode(i))).append(",\"line\":").append(quote(route.getLine(i).getID())).append('}');
+
+		}
+
+		json.append("],\"transfers\":").append(transfers).append('}');
+		return json.toString();
+
+	}
+
+	private static String station(Node n) {
+
+		return "{\"index\":" + n.getIndex() + ",\"id\":" + quote(n.getID()) + ",\"x\":" + n.getX() + ",\"y\":" + n.getY() + "}";
+
+	}
+
+	private Node station(String s) {
+
+		if (s == null) { return null; }
+		try {
+
+			int i = Integer.parseInt(s);
+			return i >= 0 && i < nodes.length ? nodes[i] : null;
+
+		} catch (NumberFormatException e) { return stationsById.get(s); }
+
+	}
+
+	// prefix "from" or "to", null if the query has no coordinates for it
+	private static Vector2 position(HashMap<String, String> query, String prefix) {
+
+		String x = query.get(prefix + "X");
+		String y = query.get(prefix + "Y");
+		if (x == null || y == null) { return null; }
+		return new Vector2(Double.parseDouble(x), Double.parseDouble(y));
+
+	}
+
+	private Node nearestStation(Vector2 pos) {
+
+		Node nearest = null;
+		double best = Double.MAX_VALUE;
+		for (Node n : nodes) {
+
+			double d = Vector2.distanceBetween(pos, n.getPos());
+			if (n.isInService() && d < best) {
+
+				best = d;
+				nearest = n;
+
+			}
+
+		}
+
+		return nearest;
+
+	}
+
+	private static HashMap<String, String> parseQuery(String raw) {
+
+		HashMap<String, String> query = new HashMap<String, String>();
+		if (raw == null) { return query; }
+		for (String pair : raw.split("&")) {
+
+			int eq = pair.indexOf('=');
+			if (eq <= 0) { continue; }
+			query.put(URLDecoder.decode(pair.substring(0, eq), StandardCharsets.UTF_8), URLDecoder.decode(pair.substring(eq + 1), StandardCharsets.UTF_8));
+
+		}
+
+		return query;
+
+	}
+
+	private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+
+		byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+		exchange.sendResponseHeaders(status, bytes.length);
+		try (OutputStream out = exchange.getResponseBody()) { out.write(bytes); }
+
+	}
+
+	private static String quote(String s) {
+
+		StringBuilder quoted = new StringBuilder("\"");
+		for (char c : s.toCharArray()) {
+
+			if (c == '"' || c == '\\') { quoted.append('\\').append(c); }
+			else if (c < 0x20) { quoted.append(String.format("\\u%04x", (int) c)); }
+			else { quoted.append(c); }
+
+		}
+
+		return quoted.append('"').toString();
+
+	}
+
+	public boolean isRunning() { return this.server != null; }
+	public int getPort() { return this.server == null ? -1 : this.server.getAddress().getPort(); }
+	public String toString() { return "RouteService " + (server == null ? "stopped" : "on " + server.getAddress()); }
+
+}
+
+// contraction hierarchy over the line-expanded station graph (see StationGraph) for networks too big for NextHopTable
+// preprocessing contracts (station, line) vertices in order of importance and adds shortcuts, queries are a bidirectional search that only ever goes upward
+// transfer arcs are contracted like any other, so routes cost exactly what PathFinder.findPath's do, transfer penalty included (see Headless --check-routes)
+// closures aren't seen, World routes through the route cache instead while anything is out of service
+// shortcuts remember the two arcs they replace so routes unpack to the same ArrayList<Node.PathWrapper> shape findPath returns
+class ContractionHierarchy implements RouteEngine {
+
+	public static final int WITNESS_SETTLE_LIMIT = 64;
+
+	private StationGraph graph;
+	private int[] rank;
+	private int numShortcuts;
+
+	// upward arcs in compressed rows, both search directions use these since the graph is undirected
+	private int[] upOffsets;
+	private int[] upTargets;
+	private double[] upWeights;
+	private Arc[] upArcs;
+
+	private final ThreadLocal<QueryContext> contexts = ThreadLocal.withInitial(QueryContext::new);
+
+	private ContractionHierarchy(StationGraph graph) {
+
+		this.graph = graph;
+		this.rank = new int[graph.getNumVertices()];
+
+	}
+
+	public static ContractionHierarchy build(StationGraph stations) {
+
+		ContractionHierarchy ch = new ContractionHierarchy(stations);
+		int n = stations.getNumVertices();
+
+		// working graph over the expanded vertices, station edges go both ways so every arc shows up from both of its ends
+		int[] arcOffsets = stations.getArcOffsets();
+		ArrayList<HashMap<Integer, Arc>> graph = new ArrayList<HashMap<Integer, Arc>>(n);
+		for (int i = 0; i < n; i++) { graph.add(new HashMap<Integer, Arc>()); }
+		for (int u = 0; u < n; u++) {
+
+			for (int a = arcOffsets[u]; a < arcOffsets[u+1]; a++) {
+
+				addArc(graph, new Arc(u, stations.getArcTargets()[a], stations.getArcWeights()[a], null, null));
+
+			}
+
+		}
+
+		ArrayList<Arc> allArcs = new ArrayList<Arc>();
+		for (int i = 0; i < n; i++) {
+
+			for (Arc a : graph.get(i).values()) { if (a.from == i) { allArcs.add(a); } }
+
+		}
+
+		// contract in order of edge difference plus contracted neighbors, with lazy priority updates
+		boolean[] contracted = new boolean[n];
+		int[] contractedNeighbors = new int[n];
+		WitnessSearch witness = new WitnessSearch(n);
+		PriorityQueue<double[]> order = new PriorityQueue<double[]>((a, b) -> Double.compare(a[0], b[0]));
+		for (int v = 0; v < n; v++) { order.add(new double[] { ch.priority(graph, contracted, contractedNeighbors, witness, v), v }); }
+
+		int nextRank = 0;
+		while (!order.isEmpty()) {
+
+			int v = (int) order.poll()[1];
+			if (contracted[v]) { continue; }
+
+			double priority = ch.priority(graph, contracted, contractedNeighbors, witness, v);
+			if (!order.isEmpty() && priority > order.peek()[0]) {
+
+				order.add(new double[] { priority, v });
+				continue;
+
+			}
+
+			for (Arc shortcut : ch.shortcuts(graph, contracted, witness, v)) {
+
+				if (addArc(graph, shortcut)) { allArcs.add(shortcut); ch.numShortcuts++; }
+
+			}
+
+			contracted[v] = true;
+			ch.rank[v] = nextRank++;
+			for (int u : graph.get(v).keySet()) { contractedNeighbors[u]++; }
+
+		}
+
+		// keep every arc at its lower ranked end
+		ch.upOffsets = new int[n + 1];
+		for (Arc a : allArcs) { ch.upOffsets[ch.lower(a) + 1]++; }
+		for (int i = 0; i < n; i++) { ch.upOffsets[i+1] += ch.upOffsets[i]; }
+
+		int[] fill = Arrays.copyOf(ch.upOffsets, n);
+		ch.upTargets = new int[allArcs.size()];
+		ch.upWeights = new double[allArcs.size()];
+		ch.upArcs = new Arc[allArcs.size()];
+		for (Arc a : allArcs) {
+
+			int low = ch.lower(a);
+			int i = fill[low]++;
+			ch.upTargets[i] = a.other(low);
+			ch.upWeights[i] = a.weight;
+			ch.upArcs[i] = a;
+
+		}
+
+		return ch;
+
+	}
+
+	// adds or improves the arc between a's endpoints, returns false if an equal or better one already exists
+	private static boolean addArc(ArrayList<HashMap<Integer, Arc>> graph, Arc a) {
+
+		Arc existing = graph.get(a.from).get(a.to);
+		if (existing != null && existing.weight <= a.weight) { return false; }
+		graph.get(a.from).put(a.to, a);
+		graph.get(a.to).put(a.from, a);
+		return true;
+
+	}
+
+	private double priority(ArrayList<HashMap<Integer, Arc>> graph, boolean[] contracted, int[] contractedNeighbors, WitnessSearch witness, int v) {
+
+		int degree = 0;
+		for (int u : graph.get(v).keySet()) { if (!contracted[u]) { degree++; } }
+		return shortcuts(graph, contracted, witness, v).size() - degree + contractedNeighbors[v];
+
+	}
+
+	// shortcuts needed between v's remaining neighbors if v were contracted now
+	private ArrayList<Arc> shortcuts(ArrayList<HashMap<Integer, Arc>> graph, boolean[] contracted, WitnessSearch witness, int v) {
+
+		ArrayList<Arc> shortcuts = new ArrayList<Arc>();
+		ArrayList<Arc> arcs = new ArrayList<Arc>();
+		double maxWeight = 0;
+		for (Arc a : graph.get(v).values()) {
+
+			if (contracted[a.other(v)]) { continue; }
+			arcs.add(a);
+			maxWeight = Math.max(maxWeight, a.weight);
+
+		}
+
+		for (int i = 0; i < arcs.size(); i++) {
+
+			Arc in = arcs.get(i);
+			int u = in.other(v);
+			witness.run(graph, contracted, u, v, in.weight + maxWeight);
+
+			for (int j = i + 1; j < arcs.size(); j++) {
+
+				Arc out = arcs.get(j);
+				int w = out.other(v);
+				double via = in.weight + out.weight;
+				if (witness.distance(w) > via) { shortcuts.add(new Arc(u, w, via, in, out)); }
+
+			}
+
+		}
+
+		return shortcuts;
+
+	}
+
+	private int lower(Arc a) { return rank[a.from] < rank[a.to] ? a.from : a.to; }
+
+	public ArrayList<Node.PathWrapper> findPath(Node start, Node end) {
+
+		int s = start.getIndex();
+		int t = end.getIndex();
+		if (s < 0 || t < 0) { return PathFinder.findPath(start, end); }
+		if (s == t) { return new ArrayList<Node.PathWrapper>(); }
+
+		QueryContext ctx = contexts.get();
+		int epoch = ctx.nextEpoch();
+		ctx.forward.clear();
+		ctx.backward.clear();
+		// every line at either station is a free place to start or finish, as in PathFinder.findPath
+		int[] vertexOffsets = graph.getVertexOffsets();
+		for (int v = vertexOffsets[s]; v < vertexOffsets[s+1]; v++) { ctx.reach(ctx.fwdSeen, ctx.fwdDist, ctx.fwdArc, v, 0, null, epoch); ctx.forward.push(v, 0); }
+		for (int v = vertexOffsets[t]; v < vertexOffsets[t+1]; v++) { ctx.reach(ctx.bwdSeen, ctx.bwdDist, ctx.bwdArc, v, 0, null, epoch); ctx.backward.push(v, 0); }
+
+		double best = Double.MAX_VALUE;
+		int meet = -1;
+
+		while (true) {
+
+			boolean forwardDone = ctx.forward.isEmpty() || ctx.forward.peekKey() >= best;
+			boolean backwardDone = ctx.backward.isEmpty() || ctx.backward.peekKey() >= best;
+			if (forwardDone && backwardDone) { break; }
+
+			boolean forward = !forwardDone && (backwardDone || ctx.forward.peekKey() <= ctx.backward.peekKey());
+			PathFinder.IndexedHeap queue = forward ? ctx.forward : ctx.backward;
+			int[] seen = forward ? ctx.fwdSeen : ctx.bwdSeen;
+			double[] dist = forward ? ctx.fwdDist : ctx.bwdDist;
+			Arc[] via = forward ? ctx.fwdArc : ctx.bwdArc;
+			int[] otherSeen = forward ? ctx.bwdSeen : ctx.fwdSeen;
+			double[] otherDist = forward ? ctx.bwdDist : ctx.fwdDist;
+
+			int u = queue.pop();
+			if (otherSeen[u] == epoch && dist[u] + otherDist[u] < best) {
+
+				best = dist[u] + otherDist[u];
+				meet = u;
+
+			}
+
+			for (int i = upOffsets[u]; i < upOffsets[u+1]; i++) {
+
+				int v = upTargets[i];
+				double d = dist[u] + upWeights[i];
+				if (seen[v] != epoch || d < dist[v]) {
+
+					ctx.reach(seen, dist, via, v, d, upArcs[i], epoch);
+					queue.pushOrDecrease(v, d);
+
+				}
+
+			}
+
+		}
+
+		if (meet < 0) { return null; } // no path
+
+		// forward half is collected backwards from the meeting point, so flip it
+		ArrayList<Arc> up = new ArrayList<Arc>();
+		int first = meet;
+		for (; ctx.fwdArc[first] != null; first = ctx.fwdArc[first].other(first)) { up.add(ctx.fwdArc[first]); }
+		ArrayList<Integer> vertices = new ArrayList<Integer>();
+		vertices.add(first);
+		for (int i = up.size() - 1; i >= 0; i--) { unpack(up.get(i), vertices.get(vertices.size()-1), vertices); }
+		for (int v = meet; ctx.bwdArc[v] != null; v = ctx.bwdArc[v].other(v)) { unpack(ctx.bwdArc[v], v, vertices); }
+
+		// one step per station left, on the line it is left on, the same shape PathFinder.reconstructPath gives
+		int[] vertexStations = graph.getVertexStations();
+		int[] vertexLines = graph.getVertexLines();
+		ArrayList<Node.PathWrapper> path = new ArrayList<Node.PathWrapper>();
+		for (int i = 0; i + 1 < vertices.size(); i++) {
+
+			int v = vertices.get(i);
+			if (vertexStations[v] != vertexStations[vertices.get(i+1)]) { path.add(new Node.PathWrapper(graph.getNode(vertexStations[v]), graph.getLine(vertexLines[v]))); }
+
+		}
+
+		path.add(new Node.PathWrapper(end, graph.getLine(vertexLines[vertices.get(vertices.size()-1)])));
+		return path;
+
+	}
+
+	// appends the vertices a passes through after from, in order
+	private void unpack(Arc a, int from, ArrayList<Integer> vertices) {
+
+		if (a.first == null) {
+
+			vertices.add(a.other(from));
+			return;
+
+		}
+
+		Arc near = a.first.touches(from) ? a.first : a.second;
+		Arc far = near == a.first ? a.second : a.first;
+		unpack(near, from, vertices);
+		unpack(far, near.other(from), vertices);
+
+	}
+
+	public int getRank(int vertex) { return this.rank[vertex]; }
+	public int getNumShortcuts() { return this.numShortcuts; }
+	public int getNumArcs() { return this.upTargets.length; }
+	public String toString() { return "ContractionHierarchy vertices=" + rank.length + " arcs=" + upTargets.length + " shortcuts=" + numShortcuts; }
+
+	// undirected arc, shortcuts keep the two arcs they bypass
+	static class Arc {
+
+		private final int from;
+		private final int to;
+		private final double weight;
+		private final Arc first;
+		private final Arc second;
+
+		public Arc(int from, int to, double weight, Arc first, Arc second) {
+
+			this.from = from;
+			this.to = to;
+			this.weight = weight;
+			this.first = first;
+			this.second = second;
+
+		}
+
+		public int other(int v) { return v == this.from ? this.to : this.from; }
+		public boolean touches(int v) { return v == this.from || v == this.to; }
+		public boolean isShortcut() { return this.first != null; }
+		public double getWeight() { return this.weight; }
+
+	}
+
+	// bounded local search used to decide whether a shortcut is needed
+	static class WitnessSearch {
+
+		private PathFinder.IndexedHeap queue;
+		private double[] dist;
+		private int[] seen;
+		private int epoch;
+
+		public WitnessSearch(int n) {
+
+			this.queue = new PathFinder.IndexedHeap(n);
+			this.dist = new double[n];
+			this.seen = new int[n];
+
+		}
+
+		public void run(ArrayList<HashMap<Integer, Arc>> graph, boolean[] contracted, int source, int ignore, double maxDist) {
+
+			epoch++;
+			queue.clear();
+			dist[source] = 0;
+			seen[source] = epoch;
+			queue.push(source, 0);
+
+			int settled = 0;
+			while (!queue.isEmpty() && settled++ < WITNESS_SETTLE_LIMIT) {
+
+				int u = queue.pop();
+				if (dist[u] > maxDist) { break; }
+
+				for (Arc a : graph.get(u).values()) {
+
+					int v = a.other(u);
+					if (v == ignore || contracted[v]) { continue; }
+					double d = dist[u] + a.weight;
+					if (seen[v] != epoch || d < dist[v]) {
+
+						dist[v] = d;
+						seen[v] = epoch;
+						queue.pushOrDecrease(v, d);
+
+					}
+
+				}
+
+			}
+
+		}
+
+		public double distance(int v) { return this.seen[v] == this.epoch ? this.dist[v] : Double.MAX_VALUE; }
+
+	}
+
+	// per-thread query scratch, sized to the hierarchy it belongs to
+	class QueryContext {
+
+		private PathFinder.IndexedHeap forward;
+		private PathFinder.IndexedHeap backward;
+		private double[] fwdDist;
+		private double[] bwdDist;
+		private Arc[] fwdArc;
+		private Arc[] bwdArc;
+		private int[] fwdSeen;
+		private int[] bwdSeen;
+		private int epoch;
+
+		public QueryContext() {
+
+			int n = rank.length;
+			this.forward = new PathFinder.IndexedHeap(n);
+			this.backward = new PathFinder.IndexedHeap(n);
+			this.fwdDist = new double[n];
+			this.bwdDist = new double[n];
+			this.fwdArc = new Arc[n];
+			this.bwdArc = new Arc[n];
+			this.fwdSeen = new int[n];
+			this.bwdSeen = new int[n];
+
+		}
+
+		private void reach(int[] seen, double[] dist, Arc[] via, int v, double d, Arc arc, int epoch) {
+
+			seen[v] = epoch;
+			dist[v] = d;
+			via[v] = arc;
+
+		}
+
+		private int nextEpoch() {
+
+			if (++epoch == Integer.MAX_VALUE) {
+
+				Arrays.fill(fwdSeen, 0);
+				Arrays.fill(bwdSeen, 0);
+				epoch = 1;
+
+			}
+
+			return epoch;
+
+		}
+
+	}
+
+}
+
+// time-dependent earliest-arrival routing with the Connection Scan Algorithm
+// connections (one train moving between two consecutive stops) are projected forward from the current train positions, using each line's dists,
+// train speeds and DEFAULT_STOP_DURATION, and stored in flat arrays sorted by departure time, so a query is a single linear scan
+// changing trains costs Citizen.DEFAULT_UNLOAD_TIME and walking transfers take their distance at Citizen.DEFAULT_CITIZEN_SPEED
+// trains never get delayed, so a timetable stays valid until its horizon runs out or the simulation speed changes
+class ConnectionScan implements RouteEngine {
+
+	public static final double DEFAULT_HORIZON = Citizen.MAX_TIME_ALIVE;
+
+	private World sim;
+	private RouteEngine fallback;
+	private Node[] nodes;
+	private Line[] tripLines;
+	private double builtAt;
+	private double builtTick;
+	private double horizon;
+
+	// connections, sorted by departure
+	private int[] depStop;
+	private int[] arrStop;
+	private double[] depTime;
+	private double[] arrTime;
+	private int[] trip;
+	private int[] nextInTrip;
+
+	// walking transfers in compressed rows
+	private int[] walkOffsets;
+	private int[] walkTargets;
+	private double[] walkTimes;
+
+	private final ThreadLocal<ScanContext> contexts = ThreadLocal.withInitial(ScanContext::new);
+
+	private ConnectionScan(World sim, Node[] nodes, RouteEngine fallback, double builtAt, double horizon) {
+
+		this.sim = sim;
+		this.nodes = nodes;
+		this.fallback = fallback;
+		this.builtAt = builtAt;
+		this.builtTick = sim.getTimeIncrement();
+		this.horizon = horizon;
+
+	}
+
+	// expects PathFinder.setNetwork to have been called with the same nodes, destinations not reachable within the horizon use fallback
+	public static ConnectionScan build(World sim, Node[] nodes, Line[] lines, RouteEngine fallback, double horizon) {
+
+		double now = sim.getGlobalTime();
+		ConnectionScan cs = new ConnectionScan(sim, nodes, fallback, now, horizon);
+
+		ArrayList<Line> tripLines = new ArrayList<Line>();
+		ArrayList<double[]> connections = new ArrayList<double[]>();
+		for (Line l : lines) {
+
+			for (Train t : l.getTrains()) {
+
+				cs.project(t, tripLines.size(), now, now + horizon, connections);
+				tripLines.add(l);
+
+			}
+
+		}
+
+		cs.tripLines = tripLines.toArray(new Line[0]);
+
+		// sort by departure, then relink each trip's chain of connections through the new positions
+		int m = connections.size();
+		Integer[] order = new Integer[m];
+		for (int i = 0; i < m; i++) { order[i] = i; }
+		Arrays.sort(order, (a, b) -> Double.compare(connections.get(a)[2], connections.get(b)[2]));
+
+		int[] position = new int[m];
+		cs.depStop = new int[m];
+		cs.arrStop = new int[m];
+		cs.depTime = new double[m];
+		cs.arrTime = new double[m];
+		cs.trip = new int[m];
+		cs.nextInTrip = new int[m];
+		for (int i = 0; i < m; i++) {
+
+			double[] c = connections.get(order[i]);
+			position[order[i]] = i;
+			cs.depStop[i] = (int) c[0];
+			cs.arrStop[i] = (int) c[1];
+			cs.depTime[i] = c[2];
+			cs.arrTime[i] = c[3];
+			cs.trip[i] = (int) c[4];
+
+		}
+
+		for (int i = 0; i < m; i++) {
+
+			int next = order[i] + 1;
+			cs.nextInTrip[i] = next < m && (int) connections.get(next)[4] == cs.trip[i] ? position[next] : -1;
+
+		}
+
+		cs.buildFootpaths();
+		return cs;
+
+	}
+
+	// follows a train forward from its current state, mirroring Train.updatePosAlongLine tick for tick at the current time increment
+	private void project(Train t, int tripID, double now, double until, ArrayList<double[]> connections) {
+
+		Line l = t.getLine();
+		double tick = sim.getTimeIncrement();
+		int stop = (t.getStopIndex() + 1) % l.getLength();
+		double remaining = l.getDist(stop) - t.getStopTime();
+		double dwell = ticks(Train.DEFAULT_STOP_DURATION, 1, tick);
+
+		// time the train leaves the stop it is headed to (or already waiting at)
+		double departure;
+		if (remaining > 0) {
+
+			departure = now + ticks(remaining, t.getSpeed(), tick) + dwell;
+
+		} else {
+
+			departure = now + ticks(Math.max(0, Train.DEFAULT_STOP_DURATION - t.getStoppedTime()), 1, tick) + tick;
+
+		}
+
+		while (departure < until) {
+
+			int next = (stop + 1) % l.getLength();
+			double arrival = departure + ticks(l.getDist(next), t.getSpeed(), tick);
+			int from = l.getStop(stop).getIndex();
+			int to = l.getStop(next).getIndex();
+
+			// turning around at a terminus shows up as a zero length hop onto the same stop
+			if (from != to) { connections.add(new double[] { from, to, departure, arrival, tripID }); }
+
+			stop = next;
+			departure = arrival + dwell;
+
+		}
+
+	}
+
+	// time taken to cover amount at rate per unit of time, in whole ticks like the simulation does (continuous while paused)
+	private static double ticks(double amount, double rate, double tick) {
+
+		if (tick <= 0) { return amount / rate; }
+		return Math.ceil(amount / (rate * tick) - 1e-9) * tick;
+
+	}
+
+	private void buildFootpaths() {
+
+		int n = nodes.length;
+		walkOffsets = new int[n + 1];
+		StationGraph graph = PathFinder.getGraph();
+		ArrayList<double[]> walks = new ArrayList<double[]>();
+		for (int i = 0; i < n; i++) {
+
+			for (int e = graph.getOffsets()[i]; e < graph.getOffsets()[i+1]; e++) {
+
+				if (graph.getLineIds()[e] != StationGraph.WALKING_LINE_ID) { continue; }
+				walks.add(new double[] { graph.getTargets()[e], graph.getWeights()[e] / Citizen.DEFAULT_CITIZEN_SPEED });
+
+			}
+
+			walkOffsets[i+1] = walks.size();
+
+		}
+
+		walkTargets = new int[walks.size()];
+		walkTimes = new double[walks.size()];
+		for (int i = 0; i < walks.size(); i++) {
+
+			walkTargets[i] = (int) walks.get(i)[0];
+			walkTimes[i] = walks.get(i)[1];
+
+		}
+
+	}
+
+	public ArrayList<Node.PathWrapper> findPath(Node start, Node end) {
+
+		return findPath(start, end, 0);
+
+	}
+
+	// earliest arrival journey for someone who will be at start after delay
+	public ArrayList<Node.PathWrapper> findPath(Node start, Node end, double delay) {
+
+		int origin = start.getIndex();
+		int target = end.getIndex();
+		if (origin < 0 || target < 0) { return fallback.findPath(start, end, delay); }
+		if (origin == target) { return new ArrayList<Node.PathWrapper>(); }
+
+		ScanContext ctx = contexts.get();
+		scan(ctx, origin, sim.getGlobalTime() + delay, new int[] { target });
+		if (ctx.arrival[target] == Double.MAX_VALUE) { return fallback.findPath(start, end, delay); }
+		return reconstructPath(ctx, origin, target, end);
+
+	}
+
+	// a single scan covers every destination, it just has to run until the last of them can't be improved any more
+	@Override public ArrayList<ArrayList<Node.PathWrapper>> findPaths(Node start, List<Node> ends, double delay) {
+
+		int origin = start.getIndex();
+		int[] targets = new int[ends.size()];
+		for (int i = 0; i < targets.length; i++) {
+
+			targets[i] = ends.get(i).getIndex();
+			if (origin < 0 || targets[i] < 0) { return RouteEngine.super.findPaths(start, ends, delay); }
+
+		}
+
+		ScanContext ctx = contexts.get();
+		scan(ctx, origin, sim.getGlobalTime() + delay, targets);
+
+		ArrayList<ArrayList<Node.PathWrapper>> paths = new ArrayList<ArrayList<Node.PathWrapper>>(targets.length);
+		for (int i = 0; i < targets.length; i++) {
+
+			if (targets[i] == origin) { paths.add(new ArrayList<Node.PathWrapper>()); }
+			else if (ctx.arrival[targets[i]] == Double.MAX_VALUE) { paths.add(fallback.findPath(start, ends.get(i), delay)); }
+			else { paths.add(reconstructPath(ctx, origin, targets[i], ends.get(i))); }
+
+		}
+
+		return paths;
+
+	}
+
+	// earliest arrivals from origin, stops once no connection can improve on the latest arrival at any of targets
+	private void scan(ScanContext ctx, int origin, double departure, int[] targets) {
+
+		ctx.reset();
+		ctx.arrival[origin] = departure;
+		ctx.ready[origin] = departure;
+		walk(ctx, origin);
+
+		// first connection departing at or after departure
+		int lo = 0;
+		int hi = depTime.length;
+		while (lo < hi) {
+
+			int mid = (lo + hi) >>> 1;
+			if (depTime[mid] < departure) { lo = mid + 1; } else { hi = mid; }
+
+		}
+
+		double latest = latestArrival(ctx, targets);
+		for (int c = lo; c < depTime.length; c++) {
+
+			if (depTime[c] >= latest) { break; }
+
+			int from = depStop[c];
+			int to = arrStop[c];
+			if (ctx.tripEnter[trip[c]] < 0 && ctx.ready[from] > depTime[c]) { continue; }
+			if (ctx.tripEnter[trip[c]] < 0) { ctx.tripEnter[trip[c]] = c; }
+
+			if (arrTime[c] < ctx.arrival[to]) {
+
+				ctx.arrival[to] = arrTime[c];
+				ctx.ready[to] = arrTime[c] + Citizen.DEFAULT_UNLOAD_TIME;
+				ctx.enter[to] = ctx.tripEnter[trip[c]];
+				ctx.exit[to] = c;
+				ctx.walkFrom[to] = -1;
+				walk(ctx, to);
+				latest = latestArrival(ctx, targets);
+
+			}
+
+		}
+
+	}
+
+	private static double latestArrival(ScanContext ctx, int[] targets) {
+
+		double latest = 0;
+		for (int t : targets) { latest = Math.max(latest, ctx.arrival[t]); }
+		return latest;
+
+	}
+
+	private void walk(ScanContext ctx, int from) {
+
+		for (int i = walkOffsets[from]; i < walkOffsets[from+1]; i++) {
+
+			int to = walkTargets[i];
+			double arrival = ctx.arrival[from] + walkTimes[i];
+			if (arrival < ctx.arrival[to]) {
+
+				ctx.arrival[to] = arrival;
+				ctx.ready[to] = arrival;
+				ctx.walkFrom[to] = from;
+				ctx.enter[to] = -1;
+
+			}
+
+		}
+
+	}
+
+	private ArrayList<Node.PathWrapper> reconstructPath(ScanContext ctx, int origin, int target, Node end) {
+
+		// legs are collected from the target backwards, each leg's steps in forward order
+		ArrayList<ArrayList<Node.PathWrapper>> legs = new ArrayList<ArrayList<Node.PathWrapper>>();
+		int current = target;
+		for (int guard = 0; current != origin && guard < nodes.length; guard++) {
+
+			ArrayList<Node.PathWrapper> leg = new ArrayList<Node.PathWrapper>();
+			if (ctx.walkFrom[current] >= 0) {
+
+				leg.add(new Node.PathWrapper(nodes[ctx.walkFrom[current]], Line.WALKING_LINE));
+				current = ctx.walkFrom[current];
+
+			} else {
+
+				Line line = tripLines[trip[ctx.exit[current]]];
+				for (int c = ctx.enter[current]; c >= 0; c = c == ctx.exit[current] ? -1 : nextInTrip[c]) {
+
+					leg.add(new Node.PathWrapper(nodes[depStop[c]], line));
+
+				}
+
+				current = depStop[ctx.enter[current]];
+
+			}
+
+			legs.add(leg);
+
+		}
+
+		if (current != origin) { return null; }
+
+		ArrayList<Node.PathWrapper> path = new ArrayList<Node.PathWrapper>();
+		for (int i = legs.size() - 1; i >= 0; i--) { path.addAll(legs.get(i)); }
+		path.add(new Node.PathWrapper(end, path.get(path.size()-1).getLine()));
+		return path;
+
+	}
+
+	// arrival time at end for someone at start after delay, or Double.MAX_VALUE if unreachable within the horizon
+	public double getArrivalTime(Node start, Node end, double delay) {
+
+		ArrayList<Node.PathWrapper> path = findPath(start, end, delay);
+		return path == null ? Double.MAX_VALUE : contexts.get().arrival[end.getIndex()];
+
+	}
+
+	public boolean isTimeDependent() { return true; }
+	// train timings depend on the time increment, so changing the simulation speed also invalidates the timetable
+	public boolean isStale() { return sim.getGlobalTime() >= this.builtAt + this.horizon / 2 || sim.getTimeIncrement() != this.builtTick; }
+	public double getBuiltAt() { return this.builtAt; }
+	public int getNumConnections() { return this.depTime.length; }
+	public String toString() { return "ConnectionScan connections=" + depTime.length + " trips=" + tripLines.length + " builtAt=" + builtAt; }
+
+	// per-thread scan scratch
+	class ScanContext {
+
+		private double[] arrival;
+		private double[] ready;
+		private int[] enter;
+		private int[] exit;
+		private int[] walkFrom;
+		private int[] tripEnter;
+
+		public ScanContext() {
+
+			this.arrival = new double[nodes.length];
+			this.ready = new double[nodes.length];
+			this.enter = new int[nodes.length];
+			this.exit = new int[nodes.length];
+			this.walkFrom = new int[nodes.length];
+			this.tripEnter = new int[tripLines.length];
+
+		}
+
+		private void reset() {
+
+			Arrays.fill(arrival, Double.MAX_VALUE);
+			Arrays.fill(ready, Double.MAX_VALUE);
+			Arrays.fill(walkFrom, -1);
+			Arrays.fill(tripEnter, -1);
+
+		}
+
+	}
+
+}
+
+// immutable station route, identical routes are interned so every citizen taking one shares the same instance
+// each step packs a station index with the line used to leave it, the last step keeps the line it was reached on (like Node.PathWrapper paths)
+// routes only ever cover stations, the walk in from an off-network spawn point is kept by the citizen
+class Route {
+
+	private static final int LINE_BITS = 8;
+	private static final int LINE_MASK = (1 << LINE_BITS) - 1;
+
+	// weak both ways, a route nobody follows any more can be collected
+	private static final Map<Route, WeakReference<Route>> interned = Collections.synchronizedMap(new WeakHashMap<Route, WeakReference<Route>>());
+
+	private StationGraph graph;
+	private int[] steps;
+	private int hash;
+
+	private Route(StationGraph graph, int[] steps) {
+
+		this.graph = graph;
+		this.steps = steps;
+		this.hash = 31 * System.identityHashCode(graph) + Arrays.hashCode(steps);
+
+	}
+
+	// interned route for a path from any route engine, null if there is no path
+	public static Route of(List<Node.PathWrapper> path) {
+
+		if (path == null || path.isEmpty()) { return null; }
+
+		StationGraph graph = PathFinder.getGraph();
+		assert graph.getLines().length < LINE_MASK;
+		int[] steps = new int[path.size()];
+		for (int i = 0; i < steps.length; i++) {
+
+			Node.PathWrapper step = path.get(i);
+			assert step.getNode().getIndex() >= 0 && graph.getNode(step.getNode().getIndex()) == step.getNode();
+			steps[i] = pack(step.getNode().getIndex(), StationGraph.lineID(step.getLine()));
+
+		}
+
+		return intern(new Route(graph, steps));
+
+	}
+
+	private static Route intern(Route route) {
+
+		synchronized (interned) {
+
+			WeakReference<Route> existing = interned.get(route);
+			Route shared = existing == null ? null : existing.get();
+			if (shared != null) { return shared; }
+			interned.put(route, new WeakReference<Route>(route));
+			return route;
+
+		}
+
+	}
+
+	// the first length steps of this route followed by next, for citizens changing route part way along
+	public Route splice(int length, Route next) {
+
+		assert next.graph == this.graph && length <= steps.length;
+		int[] spliced = Arrays.copyOf(steps, length + next.steps.length);
+		System.arraycopy(next.steps, 0, spliced, length, next.steps.length);
+		return intern(new Route(graph, spliced));
+
+	}
+
+	private static int pack(int station, int line) { return (station << LINE_BITS) | ((line + 1) & LINE_MASK); }
+
+	public ArrayList<Node.PathWrapper> toList() {
+
+		ArrayList<Node.PathWrapper> path = new ArrayList<Node.PathWrapper>(steps.length);
+		for (int i = 0; i < steps.length; i++) { path.add(new Node.PathWrapper(getNode(i), getLine(i))); }
+		return path;
+
+	}
+
+	@Override public boolean equals(Object o) {
+
+		if (this == o) { return true; }
+		if (!(o instanceof Route)) { return false; }
+		Route r = (Route) o;
+		return r.graph == this.graph && r.hash == this.hash && Arrays.equals(r.steps, this.steps);
+
+	}
+
+	@Override public int hashCode() { return this.hash; }
+	public int getStation(int i) { return this.steps[i] >>> LINE_BITS; }
+	public int getLineID(int i) { return (this.steps[i] & LINE_MASK) - 1; }
+	public Node getNode(int i) { return this.graph.getNode(getStation(i)); }
+	public Line getLine(int i) { return this.graph.getLine(getLineID(i)); }
+	public Node getOrigin() { return getNode(0); }
+	public Node getDestination() { return getNode(this.steps.length - 1); }
+	public int size() { return this.steps.length; }
+	public static int getInternedCount() { return interned.size(); }
+	public String toString() { return "Route size=" + steps.length + " from=" + getOrigin().getID() + " to=" + getDestination().getID(); }
+
+}
+
+// precomputed route choice sets for the busiest origin-destination pairs, so riders between the same two stations spread over several routes
+// alternatives come from the penalty method (each search makes the arcs it used more expensive for the next one) rather than strict k-shortest paths,
+// which mostly differ by a stop or two, and anything much longer than the best route is dropped
+// every set gets a logit-weighted alias table, so picking a route at spawn is O(1) and needs no search
+class RouteChoices {
+
+	public static final int DEFAULT_ALTERNATIVES = 3;
+	// choice sets are built between the busiest stations making up this share of total ridership
+	public static final double DEFAULT_RIDERSHIP_SHARE = 0.5;
+	public static final double ARC_PENALTY_FACTOR = 0.5;
+	public static final double MAX_DETOUR = 1.4;
+	// logit scale on relative extra cost, at 6 a route 10% longer than the best is picked about half as often
+	public static final double DISPERSION = 6;
+
+	private final ConcurrentHashMap<Long, ChoiceSet> sets;
+	private final int alternatives;
+
+	private RouteChoices(int alternatives) {
+
+		this.sets = new ConcurrentHashMap<Long, ChoiceSet>();
+		this.alternatives = alternatives;
+
+	}
+
+	// expects PathFinder.setGraph to have been called with the same nodes
+	public static RouteChoices build(Node[] nodes, int alternatives, double ridershipShare) {
+
+		RouteChoices choices = new RouteChoices(alternatives);
+
+		Node[] busiest = nodes.clone();
+		Arrays.sort(busiest, (a, b) -> Double.compare(b.getRidership(), a.getRidership()));
+		double total = 0;
+		for (Node n : nodes) { total += Math.max(n.getRidership(), 0); }
+		int count = 0;
+		for (double share = 0; count < busiest.length && share < ridershipShare * total; count++) { share += Math.max(busiest[count].getRidership(), 0); }
+
+		Node[] stations = Arrays.copyOf(busiest, count);
+		IntStream.range(0, stations.length * stations.length).parallel().forEach(i -> {
+
+			Node origin = stations[i / stations.length];
+			Node destination = stations[i % stations.length];
+			if (origin == destination) { return; }
+			ChoiceSet set = choices.search(origin, destination);
+			if (set != null) { choices.sets.put(RouteCache.key(origin, destination), set); }
+
+		});
+
+		return choices;
+
+	}
+
+	private ChoiceSet search(Node origin, Node destination) {
+
+		StationGraph graph = PathFinder.getGraph();
+		float[] penalties = new float[graph.getNumArcs()];
+		float[] weights = graph.getArcWeights();
+		ArrayList<Route> routes = new ArrayList<Route>(alternatives);
+		ArrayList<Double> costs = new ArrayList<Double>(alternatives);
+
+		for (int k = 0; k < alternatives; k++) {
+
+			Route route = Route.of(PathFinder.findPath(origin, destination, penalties));
+			if (route == null || route.size() <= 1) { break; }
+
+			int[] arcs = arcs(graph, route);
+			double cost = 0;
+			for (int a : arcs) { cost += weights[a]; penalties[a] += (float) (ARC_PENALTY_FACTOR * weights[a]); }
+			if (!routes.contains(route) && (costs.isEmpty() || cost <= costs.get(0) * MAX_DETOUR)) {
+
+				routes.add(route);
+				costs.add(cost);
+
+			}
+
+		}
+
+		if (routes.isEmpty()) { return null; }
+
+		double[] weightsByRoute = new double[routes.size()];
+		for (int i = 0; i < weightsByRoute.length; i++) { weightsByRoute[i] = Math.exp(-DISPERSION * (costs.get(i) / costs.get(0) - 1)); }
+		return new ChoiceSet(routes.toArray(new Route[0]), weightsByRoute);
+
+	}
+
+	// every arc the route uses, transfers included
+	private static int[] arcs(StationGraph graph, Route route) {
+
+		ArrayList<Integer> arcs = new ArrayList<Integer>(route.size() * 2);
+		int previous = -1;
+		for (int i = 0; i < route.size() - 1; i++) {
+
+			int from = graph.getVertex(route.getStation(i), route.getLineID(i));
+			int to = graph.getVertex(route.getStation(i+1), route.getLineID(i));
+			if (previous >= 0 && previous != from) { arcs.add(graph.getArc(previous, from)); }
+			arcs.add(graph.getArc(from, to));
+			previous = to;
+
+		}
+
+		int[] result = new int[arcs.size()];
+		for (int i = 0; i < result.length; i++) { result[i] = arcs.get(i); }
+		return result;
+
+	}
+
+	// random route between the two stations for u uniform in [0, 1), null if the pair has no choice set
+	public Route choose(Node origin, Node destination, double u) {
+
+		if (origin.getIndex() < 0 || destination.getIndex() < 0) { return null; }
+		ChoiceSet set = sets.get(RouteCache.key(origin, destination));
+		return set == null ? null : set.pick(u);
+
+	}
+
+	public ChoiceSet getChoiceSet(Node origin, Node destination) { return this.sets.get(RouteCache.key(origin, destination)); }
+	public int size() { return this.sets.size(); }
+	public String toString() { return "RouteChoices pairs=" + sets.size() + " alternatives=" + alternatives; }
+
+	// Vose's alias method, one uniform draw picks a column and decides between it and its alias
+	static class ChoiceSet {
+
+		private Route[] routes;
+		private double[] probability;
+		private int[] alias;
+
+		public ChoiceSet(Route[] routes, double[] weights) {
+
+			int n = routes.length;
+			this.routes = routes;
+			this.probability = new double[n];
+			this.alias = new int[n];
+
+			double sum = 0;
+			for (double w : weights) { sum += w; }
+			double[] scaled = new double[n];
+			ArrayDeque<Integer> small = new ArrayDeque<Integer>();
+			ArrayDeque<Integer> large = new ArrayDeque<Integer>();
+			for (int i = 0; i < n; i++) {
+
+				scaled[i] = weights[i] * n / sum;
+				if (scaled[i] < 1) { small.push(i); } else { large.push(i); }
+
+			}
+
+			while (!small.isEmpty() && !large.isEmpty()) {
+
+				int s = small.pop();
+				int l = large.pop();
+				probability[s] = scaled[s];
+				alias[s] = l;
+				scaled[l] -= 1 - scaled[s];
+				if (scaled[l] < 1) { small.push(l); } else { large.push(l); }
+
+			}
+
+			// whatever is left is 1 up to rounding
+			while (!large.isEmpty()) { probability[large.pop()] = 1; }
+			while (!small.isEmpty()) { probability[small.pop()] = 1; }
+
+		}
+
+		public Route pick(double u) {
+
+			double x = u * routes.length;
+			int i = Math.min((int) x, routes.length - 1);
+			return x - i < probability[i] ? routes[i] : routes[alias[i]];
+
+		}
+
+		public Route getRoute(int i) { return this.routes[i]; }
+		public int size() { return this.routes.length; }
+
+	}
+
+}
+
+// a batch of (spawn, origin, destination) route requests solved together, in parallel on the common ForkJoin pool
+// requests sharing an origin are answered by one one-to-many search (see RouteEngine.findPaths), bursts tend to come from a handful of stations
+// every route engine keeps its search state per-thread (or is read-only), so groups can be solved independently
+// a null spawn means the citizen starts at the origin station, otherwise they walk there from spawn (see Node.findWalkingRoute)
+class RouteBatch {
+
+	public static final int PARALLEL_THRESHOLD = 16;
+
+	private static final ExecutorService executor = createExecutor();
+
+	private ArrayList<Node> spawns;
+	private ArrayList<Node> origins;
+	private ArrayList<Node> destinations;
+	// route choice draws are taken up front in request order, so solving groups on any thread gives the same routes
+	private ArrayList<Double> draws;
+	private SplittableRandom random;
+
+	public RouteBatch(SplittableRandom random) {
+
+		this(Citizen.SPAWN_MAX, random);
+
+	}
+
+	public RouteBatch(int capacity, SplittableRandom random) {
+
+		this.spawns = new ArrayList<Node>(capacity);
+		this.origins = new ArrayList<Node>(capacity);
+		this.destinations = new ArrayList<Node>(capacity);
+		this.draws = new ArrayList<Double>(capacity);
+		this.random = random;
+
+	}
+
+	public void add(Node spawn, Node origin, Node destination) {
+
+		spawns.add(spawn);
+		origins.add(origin);
+		destinations.add(destination);
+		draws.add(random.nextDouble());
+
+	}
+
+	// routes come back in request order, null where there is no path
+	public ArrayList<Route> solve() {
+
+		Route[] routes = new Route[size()];
+		ArrayList<ArrayList<Integer>> groups = groups();
+
+		if (size() < PARALLEL_THRESHOLD) {
+
+			for (ArrayList<Integer> group : groups) { solve(group, routes); }
+
+		} else {
+
+			groups.parallelStream().forEach(group -> solve(group, routes));
+
+		}
+
+		return new ArrayList<Route>(Arrays.asList(routes));
+
+	}
+
+	// hands every group to the background executor, citizens pick up the results once they are done (see CitizenStore.resolveRoute)
+	public ArrayList<CompletableFuture<Route>> submit() {
+
+		@SuppressWarnings({"unchecked", "rawtypes"})
+		CompletableFuture<Route>[] routes = new CompletableFuture[size()];
+		for (ArrayList<Integer> group : groups()) {
+
+			Node spawn = spawns.get(group.get(0));
+			Node origin = origins.get(group.get(0));
+			ArrayList<Node> ends = new ArrayList<Node>(group.size());
+			ArrayList<Double> u = new ArrayList<Double>(group.size());
+			for (int i : group) {
+
+				ends.add(destinations.get(i));
+				u.add(draws.get(i));
+
+			}
+
+			CompletableFuture<ArrayList<Route>> solved = CompletableFuture.supplyAsync(() -> solve(spawn, origin, ends, u), executor);
+			for (int j = 0; j < group.size(); j++) {
+
+				int k = j;
+				routes[group.get(j)] = solved.thenApply(r -> r.get(k));
+
+			}
+
+		}
+
+		return new ArrayList<CompletableFuture<Route>>(Arrays.asList(routes));
+
+	}
+
+	// request indices by origin, time-dependent engines also need the same spawn point since the walk there delays departure
+	private ArrayList<ArrayList<Integer>> groups() {
+
+		boolean timed = Node.getRouteEngine().isTimeDependent();
+		LinkedHashMap<List<Node>, ArrayList<Integer>> groups = new LinkedHashMap<List<Node>, ArrayList<Integer>>();
+		for (int i = 0; i < size(); i++) {
+
+			List<Node> key = timed ? Arrays.asList(origins.get(i), spawns.get(i)) : Collections.singletonList(origins.get(i));
+			groups.computeIfAbsent(key, k -> new ArrayList<Integer>()).add(i);
+
+		}
+
+		return new ArrayList<ArrayList<Integer>>(groups.values());
+
+	}
+
+	private void solve(ArrayList<Integer> group, Route[] routes) {
+
+		ArrayList<Node> ends = new ArrayList<Node>(group.size());
+		ArrayList<Double> u = new ArrayList<Double>(group.size());
+		for (int i : group) {
+
+			ends.add(destinations.get(i));
+			u.add(draws.get(i));
+
+		}
+
+		ArrayList<Route> solved = solve(spawns.get(group.get(0)), origins.get(group.get(0)), ends, u);
+		for (int j = 0; j < group.size(); j++) { routes[group.get(j)] = solved.get(j); }
+
+	}
+
+	private static ArrayList<Route> solve(Node spawn, Node origin, List<Node> destinations, List<Double> draws) {
+
+		// pairs with a precomputed choice set just draw a route, only the rest go to the route engine
+		Route[] routes = new Route[destinations.size()];
+		ArrayList<Node> searched = new ArrayList<Node>(destinations.size());
+		ArrayList<Integer> searchedAt = new ArrayList<Integer>(destinations.size());
+		RouteChoices choices = Node.getRouteChoices();
+		for (int i = 0; i < routes.length; i++) {
+
+			if (choices != null) { routes[i] = choices.choose(origin, destinations.get(i), draws.get(i)); }
+			if (routes[i] == null) {
+
+				searched.add(destinations.get(i));
+				searchedAt.add(i);
+
+			}
+
+		}
+
+		if (searched.size() == 1) {
+
+			Node destination = searched.get(0);
+			routes[searchedAt.get(0)] = spawn == null ? Route.of(Node.findPath(origin, destination)) : Node.findWalkingRoute(spawn, origin, destination);
+
+		} else if (searched.size() > 1) {
+
+			ArrayList<ArrayList<Node.PathWrapper>> paths = Node.findWalkingPaths(spawn, origin, searched);
+			for (int j = 0; j < paths.size(); j++) { routes[searchedAt.get(j)] = Route.of(paths.get(j)); }
+
+		}
+
+		return new ArrayList<Route>(Arrays.asList(routes));
+
+	}
+
+	// daemon threads, one core is left for the simulation and drawing
+	private static ExecutorService createExecutor() {
+
+		int threads = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+		return Executors.newFixedThreadPool(threads, r -> {
+
+			Thread t = new Thread(r, "route-worker");
+			t.setDaemon(true);
+			return t;
+
+		});
+
+	}
+
+	public void clear() { spawns.clear(); origins.clear(); destinations.clear(); }
+	public Node getSpawn(int i) { return this.spawns.get(i); }
+	public Node getOrigin(int i) { return this.origins.get(i); }
+	public int size() { return this.origins.size(); }
+	public String toString() { return "RouteBatch size=" + size(); }
+
+}
+
+// bounded origin-destination route cache, weighted ridership sampling means the same busy pairs come up over and over
+// least recently used routes are evicted first, and callers always get their own copy of a route since they tend to modify them
+class RouteCache implements RouteEngine {
+
+	public static final int DEFAULT_CAPACITY = 16384;
+
+	private final LinkedHashMap<Long, ArrayList<Node.PathWrapper>> routes;
+	private final RouteIndex index;
+	private final RouteEngine source;
+	private final int capacity;
+	private long hits;
+	private long misses;
+	// bumped on every invalidation, so routes searched before a disruption don't get cached after it
+	private long version;
+
+	public RouteCache(int capacity, RouteEngine source) {
+
+		this.capacity = capacity;
+		this.source = source;
+		this.index = new RouteIndex();
+		this.routes = new LinkedHashMap<Long, ArrayList<Node.PathWrapper>>(16, 0.75f, true) {
+
+			@Override protected boolean removeEldestEntry(Map.Entry<Long, ArrayList<Node.PathWrapper>> eldest) {
+
+				if (size() <= RouteCache.this.capacity) { return false; }
+				index.remove(eldest.getKey());
+				return true;
+
+			}
+
+		};
+
+	}
+
+	public ArrayList<Node.PathWrapper> findPath(Node start, Node end) {
+
+		// nodes outside of the station network (e.g. spawn points) are never cached
+		if (start.getIndex() < 0 || end.getIndex() < 0) { return source.findPath(start, end); }
+
+		long key = key(start, end);
+		long searchVersion;
+		synchronized (this) {
+
+			if (routes.containsKey(key)) {
+
+				hits++;
+				return copy(routes.get(key));
+
+			}
+
+			misses++;
+			searchVersion = version;
+
+		}
+
+		// search outside of the lock so concurrent misses don't serialize
+		ArrayList<Node.PathWrapper> path = source.findPath(start, end);
+		synchronized (this) {
+
+			if (searchVersion == version) {
+
+				routes.put(key, copy(path));
+				index.add(key, path, 0);
+
+			}
+
+		}
+
+		return path;
+
+	}
+
+	// hits come straight from the cache, the misses are passed on to the source as one request
+	@Override public ArrayList<ArrayList<Node.PathWrapper>> findPaths(Node start, List<Node> ends, double delay) {
+
+		if (start.getIndex() < 0) { return source.findPaths(start, ends, delay); }
+
+		ArrayList<ArrayList<Node.PathWrapper>> paths = new ArrayList<ArrayList<Node.PathWrapper>>(Collections.nCopies(ends.size(), null));
+		ArrayList<Node> missed = new ArrayList<Node>();
+		ArrayList<Integer> missedAt = new ArrayList<Integer>();
+		long searchVersion;
+		synchronized (this) {
+
+			for (int i = 0; i < ends.size(); i++) {
+
+				long key = key(start, ends.get(i));
+				if (ends.get(i).getIndex() >= 0 && routes.containsKey(key)) {
+
+					hits++;
+					paths.set(i, copy(routes.get(key)));
+
+				} else {
+
+					misses++;
+					missed.add(ends.get(i));
+					missedAt.add(i);
+
+				}
+
+			}
+
+			searchVersion = version;
+
+		}
+
+		if (missed.isEmpty()) { return paths; }
+
+		ArrayList<ArrayList<Node.PathWrapper>> found = source.findPaths(start, missed, delay);
+		synchronized (this) {
+
+			for (int j = 0; j < missed.size(); j++) {
+
+				ArrayList<Node.PathWrapper> path = found.get(j);
+				paths.set(missedAt.get(j), path);
+				if (searchVersion == version && missed.get(j).getIndex() >= 0) {
+
+					long key = key(start, missed.get(j));
+					routes.put(key, copy(path));
+					index.add(key, path, 0);
+
+				}
+
+			}
+
+		}
+
+		return paths;
+
+	}
+
+	// must be called whenever the network changes
+	public synchronized void clear() {
+
+		routes.clear();
+		index.clear();
+		hits = 0;
+		misses = 0;
+		version++;
+
+	}
+
+	// drops only the cached routes that use any of the given edges (see RouteIndex.edgeKey), returns how many were dropped
+	public synchronized int invalidate(Collection<Long> edges) {
+
+		HashSet<Long> affected = index.getRoutes(edges);
+		for (long key : affected) {
+
+			routes.remove(key);
+			index.remove(key);
+
+		}
+
+		version++;
+		return affected.size();
+
+	}
+
+	private static ArrayList<Node.PathWrapper> copy(ArrayList<Node.PathWrapper> path) {
+
+		return path == null ? null : new ArrayList<Node.PathWrapper>(path);
+
+	}
+
+	public static long key(Node start, Node end) { return ((long) start.getIndex() << 32) | (end.getIndex() & 0xffffffffL); }
+	public synchronized int size() { return this.routes.size(); }
+	public int getCapacity() { return this.capacity; }
+	public synchronized long getHits() { return this.hits; }
+	public synchronized long getMisses() { return this.misses; }
+	public synchronized double getHitRate() { return hits + misses == 0 ? 0 : (double) hits / (hits + misses); }
+	public synchronized String toString() { return "RouteCache size=" + routes.size() + "/" + capacity + " hits=" + hits + " misses=" + misses + String.format(" hitRate=%.3f", getHitRate()); }
+
+}
+
+// reverse index from graph edges (consecutive Node.PathWrapper entries) to the routes using them, so a disruption only touches affected routes
+// routes are identified by a long key (RouteCache.key), registering more paths under the same key merges their edges
+class RouteIndex {
+
+	private HashMap<Long, HashSet<Long>> routesByEdge;
+	private HashMap<Long, HashSet<Long>> edgesByRoute;
+
+	public RouteIndex() {
+
+		this.routesByEdge = new HashMap<Long, HashSet<Long>>();
+		this.edgesByRoute = new HashMap<Long, HashSet<Long>>();
+
+	}
+
+	// indexes the edges of path from index start on
+	public void add(long route, ArrayList<Node.PathWrapper> path, int start) {
+
+		if (path == null) { return; }
+		add(route, path.toArray(new Node.PathWrapper[0]), start);
+
+	}
+
+	public void add(long route, Route path, int start) {
+
+		HashSet<Long> edges = edgesByRoute.computeIfAbsent(route, k -> new HashSet<Long>());
+		for (int i = Math.max(start, 0); i < path.size() - 1; i++) {
+
+			long edge = edgeKey(path.getNode(i), path.getNode(i+1), path.getLine(i));
+			if (edges.add(edge)) { routesByEdge.computeIfAbsent(edge, k -> new HashSet<Long>()).add(route); }
+
+		}
+
+	}
+
+	public void add(long route, Node.PathWrapper[] path, int start) {
+
+		HashSet<Long> edges = edgesByRoute.computeIfAbsent(route, k -> new HashSet<Long>());
+		for (int i = Math.max(start, 0); i < path.length - 1; i++) {
+
+			long edge = edgeKey(path[i].getNode(), path[i+1].getNode(), path[i].getLine());
+			if (edges.add(edge)) { routesByEdge.computeIfAbsent(edge, k -> new HashSet<Long>()).add(route); }
+
+		}
+
+	}
+
+	public void remove(long route) {
+
+		HashSet<Long> edges = edgesByRoute.remove(route);
+		if (edges == null) { return; }
+		for (long edge : edges) {
+
+			HashSet<Long> routes = routesByEdge.get(edge);
+			routes.remove(route);
+			if (routes.isEmpty()) { routesByEdge.remove(edge); }
+
+		}
+
+	}
+
+	public HashSet<Long> getRoutes(Collection<Long> edges) {
+
+		HashSet<Long> routes = new HashSet<Long>();
+		for (long edge : edges) {
+
+			HashSet<Long> r = routesByEdge.get(edge);
+			if (r != null) { routes.addAll(r); }
+
+		}
+
+		return routes;
+
+	}
+
+	public void clear() { routesByEdge.clear(); edgesByRoute.clear(); }
+	public boolean contains(long route) { return this.edgesByRoute.containsKey(route); }
+	public int size() { return this.edgesByRoute.size(); }
+
+	// directed edge from a to b along l, nodes outside the station network all share index -1
+	public static long edgeKey(Node a, Node b, Line l) {
+
+		return ((long) (a.getIndex() & 0xffffff) << 40) | ((long) (b.getIndex() & 0xffffff) << 16) | ((l.getIndex() + 1) & 0xffff);
+
+	}
+
+	// every edge along a line, in both directions
+	public static ArrayList<Long> lineEdges(Line l) {
+
+		ArrayList<Long> edges = new ArrayList<Long>();
+		for (int i = 0; i < l.getLength(); i++) {
+
+			Node a = l.getStop(i);
+			Node b = l.getStop((i + 1) % l.getLength());
+			edges.add(edgeKey(a, b, l));
+			edges.add(edgeKey(b, a, l));
+
+		}
+
+		return edges;
+
+	}
+
+	// every edge into or out of a stop
+	public static ArrayList<Long> stopEdges(Node n) {
+
+		ArrayList<Long> edges = new ArrayList<Long>();
+		for (Node.PathWrapper pw : n.getNeighbors().keySet()) {
+
+			edges.add(edgeKey(n, pw.getNode(), pw.getLine()));
+			edges.add(edgeKey(pw.getNode(), n, pw.getLine()));
+
+		}
+
+		return edges;
+
+	}
+
+	public static ArrayList<Long> transferEdges(Node a, Node b) {
+
+		return new ArrayList<Long>(Arrays.asList(edgeKey(a, b, Line.WALKING_LINE), edgeKey(b, a, Line.WALKING_LINE)));
+
+	}
+
+}
+
+// frozen copy of the station graph in compressed sparse rows, every route search runs on this rather than Node.neighbors
+// edges out of station i are [offsets[i], offsets[i+1]), parallel edges on the same line (lines are walked out and back) collapse to the cheapest
+// line ids are Line.getIndex, with WALKING_LINE_ID for transfers
+// searches run on the line-expanded form: one vertex per (station, line) pair, with arcs riding along the line and transfer arcs
+// between the vertices of a station that carry the transfer penalty, so a label never depends on how its station was reached
+class StationGraph {
+
+	public static final int WALKING_LINE_ID = -1;
+	// bump whenever expand lays vertices or arcs out differently, tables built over an older layout are rebuilt (see NextHopTable.fingerprint)
+	public static final int FORMAT_VERSION = 1;
+
+	private Node[] nodes;
+	private Line[] lines;
+	private int[] offsets;
+	private int[] targets;
+	private int[] lineIds;
+	private float[] weights;
+
+	// vertices of station i are [vertexOffsets[i], vertexOffsets[i+1]), arcs out of vertex v are [arcOffsets[v], arcOffsets[v+1])
+	private int[] vertexOffsets;
+	private int[] vertexStations;
+	private int[] vertexLines;
+	private int[] arcOffsets;
+	private int[] arcTargets;
+	private float[] arcWeights;
+
+	private StationGraph(Node[] nodes, Line[] lines, int numEdges) {
+
+		this.nodes = nodes;
+		this.lines = lines;
+		this.offsets = new int[nodes.length + 1];
+		this.targets = new int[numEdges];
+		this.lineIds = new int[numEdges];
+		this.weights = new float[numEdges];
+
+	}
+
+	// expects PathFinder.setNetwork to have been called with the same nodes and line indices to be set
+	public static StationGraph build(Node[] nodes, Line[] lines) {
+
+		// cheapest edge per (target, line), keyed the same way for every station
+		ArrayList<LinkedHashMap<Long, Double>> rows = new ArrayList<LinkedHashMap<Long, Double>>(nodes.length);
+		int numEdges = 0;
+		for (Node n : nodes) {
+
+			LinkedHashMap<Long, Double> row = new LinkedHashMap<Long, Double>();
+			for (Map.Entry<Node.PathWrapper, Double> edge : n.getNeighbors().entrySet()) {
+
+				int target = edge.getKey().getNode().getIndex();
+				if (target < 0 || target == n.getIndex()) { continue; }
+				long key = ((long) target << 32) | (lineID(edge.getKey().getLine()) & 0xffffffffL);
+				row.merge(key, edge.getValue(), Math::min);
+
+			}
+
+			rows.add(row);
+			numEdges += row.size();
+
+		}
+
+		StationGraph graph = new StationGraph(nodes, lines, numEdges);
+		int e = 0;
+		for (int i = 0; i < nodes.length; i++) {
+
+			// sorted by target so rows are stable across runs regardless of hash order
+			ArrayList<Long> keys = new ArrayList<Long>(rows.get(i).keySet());
+			Collections.sort(keys);
+			for (long key : keys) {
+
+				graph.targets[e] = (int) (key >>> 32);
+				graph.lineIds[e] = (int) key;
+				graph.weights[e] = rows.get(i).get(key).floatValue();
+				e++;
+
+			}
+
+			graph.offsets[i+1] = e;
+
+		}
+
+		graph.expand(Node.DEFAULT_CONST_TRANSFER_PENALTY);
+		return graph;
+
+	}
+
+	private void expand(double transferPenalty) {
+
+		int n = nodes.length;
+		vertexOffsets = new int[n + 1];
+		ArrayList<int[]> vertices = new ArrayList<int[]>();
+		for (int i = 0; i < n; i++) {
+
+			TreeSet<Integer> served = new TreeSet<Integer>();
+			for (int e = offsets[i]; e < offsets[i+1]; e++) { served.add(lineIds[e]); }
+			for (int l : served) { vertices.add(new int[] { i, l }); }
+			vertexOffsets[i+1] = vertices.size();
+
+		}
+
+		vertexStations = new int[vertices.size()];
+		vertexLines = new int[vertices.size()];
+		for (int v = 0; v < vertices.size(); v++) {
+
+			vertexStations[v] = vertices.get(v)[0];
+			vertexLines[v] = vertices.get(v)[1];
+
+		}
+
+		// ride arcs first, then transfers to every other line at the station
+		arcOffsets = new int[vertices.size() + 1];
+		int numArcs = 0;
+		for (int v = 0; v < vertices.size(); v++) {
+
+			int i = vertexStations[v];
+			for (int e = offsets[i]; e < offsets[i+1]; e++) { if (lineIds[e] == vertexLines[v]) { numArcs++; } }
+			numArcs += vertexOffsets[i+1] - vertexOffsets[i] - 1;
+			arcOffsets[v+1] = numArcs;
+
+		}
+
+		arcTargets = new int[numArcs];
+		arcWeights = new float[numArcs];
+		int a = 0;
+		for (int v = 0; v < vertices.size(); v++) {
+
+			int i = vertexStations[v];
+			for (int e = offsets[i]; e < offsets[i+1]; e++) {
+
+				if (lineIds[e] != vertexLines[v]) { continue; }
+				arcTargets[a] = getVertex(targets[e], lineIds[e]);
+				arcWeights[a++] = weights[e];
+
+			}
+
+			for (int u = vertexOffsets[i]; u < vertexOffsets[i+1]; u++) {
+
+				if (u == v) { continue; }
+				arcTargets[a] = u;
+				arcWeights[a++] = (float) transferPenalty;
+
+			}
+
+		}
+
+	}
+
+	// arc between two vertices, -1 if there is none
+	public int getArc(int from, int to) {
+
+		for (int a = arcOffsets[from]; a < arcOffsets[from+1]; a++) { if (arcTargets[a] == to) { return a; } }
+		return -1;
+
+	}
+
+	// what a route costs here, riding, stop penalties and changing lines, infinity if it uses an arc the graph doesn't have
+	public double cost(ArrayList<Node.PathWrapper> path) {
+
+		double cost = 0;
+		int previous = -1;
+		for (int k = 0; k + 1 < path.size(); k++) {
+
+			int line = lineID(path.get(k).getLine());
+			int from = getVertex(path.get(k).getNode().getIndex(), line);
+			int to = getVertex(path.get(k+1).getNode().getIndex(), line);
+			int ride = from < 0 || to < 0 ? -1 : getArc(from, to);
+			int transfer = previous < 0 || previous == from ? -1 : getArc(previous, from);
+			if (ride < 0 || previous >= 0 && previous != from && transfer < 0) { return Double.POSITIVE_INFINITY; }
+			cost += arcWeights[ride] + (transfer < 0 ? 0 : arcWeights[transfer]);
+			previous = to;
+
+		}
+
+		return cost;
+
+	}
+
+	// vertex of the station on the given line, -1 if the line doesn't serve it
+	public int getVertex(int station, int lineId) {
+
+		for (int v = vertexOffsets[station]; v < vertexOffsets[station+1]; v++) { if (vertexLines[v] == lineId) { return v; } }
+		return -1;
+
+	}
+
+	public static int lineID(Line l) { return l == Line.WALKING_LINE ? WALKING_LINE_ID : l.getIndex(); }
+	public Line getLine(int id) { return id == WALKING_LINE_ID ? Line.WALKING_LINE : this.lines[id]; }
+	public Node getNode(int i) { return this.nodes[i]; }
+	public Node[] getNodes() { return this.nodes; }
+	public Line[] getLines() { return this.lines; }
+	public int[] getOffsets() { return this.offsets; }
+	public int[] getTargets() { return this.targets; }
+	public int[] getLineIds() { return this.lineIds; }
+	public float[] getWeights() { return this.weights; }
+	public int getNumNodes() { return this.nodes.length; }
+	public int getNumEdges() { return this.targets.length; }
+	public int[] getVertexOffsets() { return this.vertexOffsets; }
+	public int[] getVertexStations() { return this.vertexStations; }
+	public int[] getVertexLines() { return this.vertexLines; }
+	public int[] getArcOffsets() { return this.arcOffsets; }
+	public int[] getArcTargets() { return this.arcTargets; }
+	public float[] getArcWeights() { return this.arcWeights; }
+	public int getNumVertices() { return this.vertexStations.length; }
+	public int getNumArcs() { return this.arcTargets.length; }
+	public String toString() { return "StationGraph nodes=" + nodes.length + " edges=" + targets.length + " vertices=" + vertexStations.length + " arcs=" + arcTargets.length; }
+
+}
+
+// landmark distances for the ALT (A*, landmarks, triangle inequality) heuristic used by PathFinder
+// distances ignore transfer penalties and closures, both of which only ever make routes longer, so the bounds stay admissible
+class Landmarks {
+
+	public static final int DEFAULT_LANDMARKS = 8;
+	// float rounding could otherwise push a bound just past the true distance
+	private static final double SLACK = 1e-3;
+
+	private int[] landmarks;
+	private float[][] dists;
+
+	private Landmarks(int[] landmarks, float[][] dists) {
+
+		this.landmarks = landmarks;
+		this.dists = dists;
+
+	}
+
+	// picks k landmarks by farthest-point selection, so they end up spread around the edges of the network
+	public static Landmarks build(StationGraph graph, int k) {
+
+		Node[] nodes = graph.getNodes();
+		k = Math.min(k, nodes.length);
+		int[] landmarks = new int[k];
+		float[][] dists = new float[k][];
+		float[] nearest = new float[nodes.length];
+		Arrays.fill(nearest, Float.POSITIVE_INFINITY);
+
+		// start from whatever is farthest from the first station
+		float[] first = distancesFrom(graph, 0);
+		int next = 0;
+		for (int i = 0; i < nodes.length; i++) { if (first[i] != Float.POSITIVE_INFINITY && first[i] > first[next]) { next = i; } }
+
+		for (int l = 0; l < k; l++) {
+
+			landmarks[l] = next;
+			dists[l] = distancesFrom(graph, next);
+			for (int i = 0; i < nodes.length; i++) {
+
+				nearest[i] = Math.min(nearest[i], dists[l][i]);
+				if (nearest[i] != Float.POSITIVE_INFINITY && nearest[i] > nearest[next]) { next = i; }
+
+			}
+
+		}
+
+		return new Landmarks(landmarks, dists);
+
+	}
+
+	private static float[] distancesFrom(StationGraph graph, int source) {
+
+		int n = graph.getNumNodes();
+		int[] offsets = graph.getOffsets();
+		int[] targets = graph.getTargets();
+		float[] weights = graph.getWeights();
+		double[] dist = new double[n];
+		Arrays.fill(dist, Double.POSITIVE_INFINITY);
+		PathFinder.IndexedHeap queue = new PathFinder.IndexedHeap(n);
+		dist[source] = 0;
+		queue.push(source, 0);
+
+		while (!queue.isEmpty()) {
+
+			int current = queue.pop();
+			for (int e = offsets[current]; e < offsets[current+1]; e++) {
+
+				int neighbor = targets[e];
+				double d = dist[current] + weights[e];
+				if (d < dist[neighbor]) {
+
+					dist[neighbor] = d;
+					queue.pushOrDecrease(neighbor, d);
+
+				}
+
+			}
+
+		}
+
+		float[] result = new float[n];
+		for (int i = 0; i < n; i++) { result[i] = (float) dist[i]; }
+		return result;
+
+	}
+
+	// lower bound on the distance between two stations by the triangle inequality
+	public double lowerBound(int from, int to) {
+
+		double best = 0;
+		for (float[] d : dists) {
+
+			float a = d[from];
+			float b = d[to];
+			if (a == Float.POSITIVE_INFINITY || b == Float.POSITIVE_INFINITY) { continue; }
+			best = Math.max(best, Math.abs(a - b) - SLACK);
+
+		}
+
+		return best;
+
+	}
+
+	public int getLandmark(int i) { return this.landmarks[i]; }
+	public float getDist(int landmark, int node) { return this.dists[landmark][node]; }
+	public int size() { return this.landmarks.length; }
+	public String toString() { return "Landmarks k=" + landmarks.length + " " + Arrays.toString(landmarks); }
+
+}
+
+// A* over the line-expanded station graph (see StationGraph), with stations on dense indices (see Node.getIndex)
+// all scratch state lives in a per-thread SearchContext that is reused between searches, so searches never touch shared node state and can run concurrently
+class PathFinder {
+
+	private static Node[] network = new Node[0];
+	private static double[] xs = new double[0];
+	private static double[] ys = new double[0];
+	private static StationGraph graph = null;
+	private static Landmarks landmarks = null;
+	private static volatile int generation = 0;
+
+	private static final ThreadLocal<SearchContext> contexts = ThreadLocal.withInitial(SearchContext::new);
+
+	// the searches as a route engine, with one-to-many requests answered by a single search
+	public static final RouteEngine ENGINE = new RouteEngine() {
+
+		public ArrayList<Node.PathWrapper> findPath(Node start, Node end) { return PathFinder.findPath(start, end); }
+		@Override public ArrayList<ArrayList<Node.PathWrapper>> findPaths(Node start, List<Node> ends, double delay) { return PathFinder.findPaths(start, ends); }
+
+	};
+
+	// registers the station network, must be called once stations are positioned and before any searches
+	public static synchronized void setNetwork(Node[] nodes) {
+
+		double[] newXs = new double[nodes.length];
+		double[] newYs = new double[nodes.length];
+		for (int i = 0; i < nodes.length; i++) {
+
+			nodes[i].setIndex(i);
+			newXs[i] = nodes[i].getX();
+			newYs[i] = nodes[i].getY();
+
+		}
+
+		xs = newXs;
+		ys = newYs;
+		network = nodes;
+		graph = null;
+		landmarks = null;
+		generation++;
+
+	}
+
+	// freezes the edges for searching, once every neighbor and line index is in place (see StationGraph)
+	public static synchronized void setGraph(StationGraph g) {
+
+		assert g.getNodes() == network;
+		graph = g;
+		generation++;
+
+	}
+
+	public static StationGraph getGraph() { return graph; }
+
+	// landmarks have to be computed once the network's edges are in place, so they are set separately
+	public static synchronized void setLandmarks(Landmarks l) {
+
+		landmarks = l;
+		generation++;
+
+	}
+
+	// A* over the line-expanded graph (see StationGraph), every line at start is a free starting point and the first end vertex settled is the best route
+	public static ArrayList<Node.PathWrapper> findPath(Node start, Node end) {
+
+		return findPath(start, end, null);
+
+	}
+
+	// same, with extra (non-negative) costs on some arcs, indexed like StationGraph.getArcTargets, used to search for alternative routes
+	public static ArrayList<Node.PathWrapper> findPath(Node start, Node end, float[] arcPenalties) {
+
+		SearchContext ctx = context();
+		Node[] network = ctx.network;
+		StationGraph graph = ctx.graph;
+		int[] vertexOffsets = graph.getVertexOffsets();
+		int[] vertexStations = graph.getVertexStations();
+		int[] vertexLines = graph.getVertexLines();
+		int[] arcOffsets = graph.getArcOffsets();
+		int[] arcTargets = graph.getArcTargets();
+		float[] arcWeights = graph.getArcWeights();
+		int startIndex = start.getIndex();
+		int endIndex = end.getIndex();
+		assert startIndex >= 0 && endIndex >= 0 && network[startIndex] == start && network[endIndex] == end;
+
+		int epoch = ctx.nextEpoch();
+		IndexedHeap queue = ctx.queue;
+		double[] score = ctx.score;
+		int[] parent = ctx.parent;
+		int[] seen = ctx.seen;
+		int[] visited = ctx.visited;
+
+		for (int v = vertexOffsets[startIndex]; v < vertexOffsets[startIndex+1]; v++) {
+
+			score[v] = 0;
+			parent[v] = -1;
+			seen[v] = epoch;
+			queue.push(v, heuristic(ctx, startIndex, endIndex));
+
+		}
+
+		while (!queue.isEmpty()) {
+
+			int current = queue.pop();
+			int station = vertexStations[current];
+
+			// path found
+			if (station == endIndex) {
+
+				queue.clear();
+				return reconstructPath(graph, parent, current);
+
+			}
+
+			visited[current] = epoch;
+			Line line = graph.getLine(vertexLines[current]);
+
+			for (int a = arcOffsets[current]; a < arcOffsets[current+1]; a++) {
+
+				int neighbor = arcTargets[a];
+				int next = vertexStations[neighbor];
+
+				// transfer arcs stay within the station, which is open if we got this far
+				if (visited[neighbor] == epoch || next != station && !Node.isOpen(network[station], network[next], line)) { continue; }
+
+				double aggregateScore = score[current] + arcWeights[a];
+				if (arcPenalties != null) { aggregateScore += arcPenalties[a]; }
+				if (seen[neighbor] != epoch || aggregateScore < score[neighbor]) {
+
+					parent[neighbor] = current;
+					score[neighbor] = aggregateScore;
+					seen[neighbor] = epoch;
+					queue.pushOrDecrease(neighbor, aggregateScore + heuristic(ctx, next, endIndex));
+
+				}
+
+			}
+
+		}
+
+		return null; // no path
+
+	}
+
+	// one search from start that stops once every station in ends is settled, for bursts of requests sharing an origin (see RouteBatch)
+	// plain Dijkstra since there is no single target to aim for, paths come back in the order of ends
+	public static ArrayList<ArrayList<Node.PathWrapper>> findPaths(Node start, List<Node> ends) {
+
+		SearchContext ctx = context();
+		Node[] network = ctx.network;
+		StationGraph graph = ctx.graph;
+		int[] vertexOffsets = graph.getVertexOffsets();
+		int[] vertexStations = graph.getVertexStations();
+		int[] vertexLines = graph.getVertexLines();
+		int[] arcOffsets = graph.getArcOffsets();
+		int[] arcTargets = graph.getArcTargets();
+		float[] arcWeights = graph.getArcWeights();
+		int startIndex = start.getIndex();
+		assert startIndex >= 0 && network[startIndex] == start;
+
+		int epoch = ctx.nextEpoch();
+		IndexedHeap queue = ctx.queue;
+		double[] score = ctx.score;
+		int[] parent = ctx.parent;
+		int[] seen = ctx.seen;
+		int[] visited = ctx.visited;
+		int[] targeted = ctx.targeted;
+		int[] settled = ctx.settled;
+
+		int remaining = 0;
+		for (Node end : ends) {
+
+			assert end.getIndex() >= 0 && network[end.getIndex()] == end;
+			if (targeted[end.getIndex()] != epoch) {
+
+				targeted[end.getIndex()] = epoch;
+				settled[end.getIndex()] = -1;
+				remaining++;
+
+			}
+
+		}
+
+		for (int v = vertexOffsets[startIndex]; v < vertexOffsets[startIndex+1]; v++) {
+
+			score[v] = 0;
+			parent[v] = -1;
+			seen[v] = epoch;
+			queue.push(v, 0);
+
+		}
+
+		while (!queue.isEmpty() && remaining > 0) {
+
+			int current = queue.pop();
+			int station = vertexStations[current];
+			visited[current] = epoch;
+
+			// the first vertex settled at a station is its best one
+			if (targeted[station] == epoch && settled[station] < 0) {
+
+				settled[station] = current;
+				remaining--;
+
+			}
+
+			Line line = graph.getLine(vertexLines[current]);
+			for (int a = arcOffsets[current]; a < arcOffsets[current+1]; a++) {
+
+				int neighbor = arcTargets[a];
+				int next = vertexStations[neighbor];
+				if (visited[neighbor] == epoch || next != station && !Node.isOpen(network[station], network[next], line)) { continue; }
+
+				double aggregateScore = score[current] + arcWeights[a];
+				if (seen[neighbor] != epoch || aggregateScore < score[neighbor]) {
+
+					parent[neighbor] = current;
+					score[neighbor] = aggregateScore;
+					seen[neighbor] = epoch;
+					queue.pushOrDecrease(neighbor, aggregateScore);
+
+				}
+
+			}
+
+		}
+
+		queue.clear();
+		ArrayList<ArrayList<Node.PathWrapper>> paths = new ArrayList<ArrayList<Node.PathWrapper>>(ends.size());
+		for (Node end : ends) {
+
+			int vertex = settled[end.getIndex()];
+			paths.add(vertex < 0 ? null : reconstructPath(graph, parent, vertex));
+
+		}
+
+		return paths;
+
+	}
+
+	// full search from every vertex of root without a target, writes the shortest-path tree over vertices into parent and the costs into dist
+	// the line-expanded graph is symmetric, so parent[v] is also the next vertex from v towards root (unreached vertices get -1 and infinity)
+	public static void buildTree(Node root, int[] parent, double[] dist) {
+
+		SearchContext ctx = context();
+		Node[] network = ctx.network;
+		StationGraph graph = ctx.graph;
+		int[] vertexOffsets = graph.getVertexOffsets();
+		int[] vertexStations = graph.getVertexStations();
+		int[] vertexLines = graph.getVertexLines();
+		int[] arcOffsets = graph.getArcOffsets();
+		int[] arcTargets = graph.getArcTargets();
+		float[] arcWeights = graph.getArcWeights();
+		int rootIndex = root.getIndex();
+		assert rootIndex >= 0 && network[rootIndex] == root && parent.length == graph.getNumVertices() && dist.length == parent.length;
+
+		int epoch = ctx.nextEpoch();
+		IndexedHeap queue = ctx.queue;
+		int[] visited = ctx.visited;
+
+		Arrays.fill(parent, -1);
+		Arrays.fill(dist, Double.POSITIVE_INFINITY);
+		for (int v = vertexOffsets[rootIndex]; v < vertexOffsets[rootIndex+1]; v++) {
+
+			dist[v] = 0;
+			queue.push(v, 0);
+
+		}
+
+		while (!queue.isEmpty()) {
+
+			int current = queue.pop();
+			int station = vertexStations[current];
+			visited[current] = epoch;
+
+			for (int a = arcOffsets[current]; a < arcOffsets[current+1]; a++) {
+
+				int neighbor = arcTargets[a];
+				int next = vertexStations[neighbor];
+				Line line = graph.getLine(vertexLines[neighbor]);
+
+				// the tree is followed from neighbor towards current, so that is the direction that has to be open
+				if (visited[neighbor] == epoch || next != station && !Node.isOpen(network[next], network[station], line)) { continue; }
+
+				double aggregateScore = dist[current] + arcWeights[a];
+				if (aggregateScore < dist[neighbor]) {
+
+					parent[neighbor] = current;
+					dist[neighbor] = aggregateScore;
+					queue.pushOrDecrease(neighbor, aggregateScore);
+
+				}
+
+			}
+
+		}
+
+	}
+
+	// station route ending at vertex, transfers only change the line a station is left on
+	private static ArrayList<Node.PathWrapper> reconstructPath(StationGraph graph, int[] parent, int current) {
+
+		ArrayList<Node.PathWrapper> path = new ArrayList<Node.PathWrapper>();
+		if (parent[current] < 0) { return path; }
+
+		int[] vertexStations = graph.getVertexStations();
+		int[] vertexLines = graph.getVertexLines();
+		path.add(new Node.PathWrapper(graph.getNode(vertexStations[current]), graph.getLine(vertexLines[current])));
+
+		while (parent[current] >= 0) {
+
+			int previous = parent[current];
+			if (vertexStations[previous] != vertexStations[current]) {
+
+				path.add(new Node.PathWrapper(graph.getNode(vertexStations[previous]), graph.getLine(vertexLines[previous])));
+
+			}
+
+			current = previous;
+
+		}
+
+		Collections.reverse(path);
+		return path;
+
+	}
+
+	// straight line distance, or the landmark bound where that is tighter (it nearly always is once stop penalties add up)
+	private static double heuristic(SearchContext ctx, int from, int to) {
+
+		double dx = ctx.xs[to] - ctx.xs[from];
+		double dy = ctx.ys[to] - ctx.ys[from];
+		double euclidean = Math.sqrt(dx * dx + dy * dy);
+		return ctx.landmarks == null ? euclidean : Math.max(euclidean, ctx.landmarks.lowerBound(from, to));
+
+	}
+
+	private static SearchContext context() {
+
+		SearchContext ctx = contexts.get();
+		if (ctx.generation != generation) { ctx.resize(); }
+		return ctx;
+
+	}
+
+	// reusable per-thread search scratch, the epoch counters let us skip clearing arrays between searches
+	static class SearchContext {
+
+		private Node[] network;
+		private StationGraph graph;
+		private double[] xs;
+		private double[] ys;
+		private Landmarks landmarks;
+		private int generation;
+		private int epoch;
+
+		private IndexedHeap queue;
+		private double[] score;
+		private int[] parent;
+		private int[] seen;
+		private int[] visited;
+		// per station, for one-to-many searches
+		private int[] targeted;
+		private int[] settled;
+
+		public SearchContext() {
+
+			resize();
+
+		}
+
+		private void resize() {
+
+			synchronized (PathFinder.class) {
+
+				this.network = PathFinder.network;
+				this.graph = PathFinder.graph;
+				this.xs = PathFinder.xs;
+				this.ys = PathFinder.ys;
+				this.landmarks = PathFinder.landmarks;
+				this.generation = PathFinder.generation;
+
+			}
+
+			// searches run on vertices, there is nothing to search until the graph is frozen
+			int n = graph == null ? 0 : graph.getNumVertices();
+			this.epoch = 0;
+			this.queue = new IndexedHeap(n);
+			this.score = new double[n];
+			this.parent = new int[n];
+			this.seen = new int[n];
+			this.visited = new int[n];
+			this.targeted = new int[network.length];
+			this.settled = new int[network.length];
+
+		}
+
+		private int nextEpoch() {
+
+			// on the (very unlikely) overflow, the old marks have to go
+			if (++epoch == Integer.MAX_VALUE) {
+
+				Arrays.fill(seen, 0);
+				Arrays.fill(visited, 0);
+				Arrays.fill(targeted, 0);
+				epoch = 1;
+
+			}
+
+			return epoch;
+
+		}
+
+	}
+
+	// binary min-heap over the ints [0, capacity) with decrease-key, positions are tracked so membership checks are O(1)
+	static class IndexedHeap {
+
+		private int[] heap;
+		private int[] pos;
+		private double[] keys;
+		private int size;
+
+		public IndexedHeap(int capacity) {
+
+			this.heap = new int[capacity];
+			this.pos = new int[capacity];
+			this.keys = new double[capacity];
+			Arrays.fill(pos, -1);
+			this.size = 0;
+
+		}
+
+		public void pushOrDecrease(int v, double key) {
+
+			if (pos[v] < 0) {
+
+				push(v, key);
+
+			} else if (key < keys[v]) {
+
+				keys[v] = key;
+				siftUp(pos[v]);
+
+			}
+
+		}
+
+		public void push(int v, double key) {
+
+			assert pos[v] < 0;
+			keys[v] = key;
+			heap[size] = v;
+			pos[v] = size;
+			siftUp(size++);
+
+		}
+
+		public int pop() {
+
+			int top = heap[0];
+			pos[top] = -1;
+			if (--size > 0) {
+
+				heap[0] = heap[size];
+				pos[heap[0]] = 0;
+				siftDown(0);
+
+			}
+
+			return top;
+
+		}
+
+		public void clear() {
+
+			for (int i = 0; i < size; i++) { pos[heap[i]] = -1; }
+			size = 0;
+
+		}
+
+		private void siftUp(int i) {
+
+			int v = heap[i];
+			double key = keys[v];
+			while (i > 0) {
+
+				int p = (i - 1) >>> 1;
+				if (keys[heap[p]] <= key) { break; }
+				heap[i] = heap[p];
+				pos[heap[i]] = i;
+				i = p;
+
+			}
+
+			heap[i] = v;
+			pos[v] = i;
+
+		}
+
+		private void siftDown(int i) {
+
+			int v = heap[i];
+			double key = keys[v];
+			while (true) {
+
+				int c = 2 * i + 1;
+				if (c >= size) { break; }
+				if (c + 1 < size && keys[heap[c+1]] < keys[heap[c]]) { c++; }
+				if (keys[heap[c]] >= key) { break; }
+				heap[i] = heap[c];
+				pos[heap[i]] = i;
+				i = c;
+
+			}
+
+			heap[i] = v;
+			pos[v] = i;
+
+		}
+
+		public boolean contains(int v) { return this.pos[v] >= 0; }
+		public boolean isEmpty() { return this.size == 0; }
+		public int size() { return this.size; }
+		public double peekKey() { return this.keys[this.heap[0]]; }
+		public double getKey(int v) { return this.keys[v]; }
+
+	}
+
+}
+
+class ComplexLine extends Drawable {
+
+	private Node[] nodes;
+	private Node head;
+	private Node tail;
+	private double length;
+
+	public ComplexLine(String id, Vector3 col, Node[] nodes, double length) {
+
+		super(id, nodes[0].getPos(), col, -1);
+		this.head = nodes[0];
+		this.tail = nodes[nodes.length-1];
+		this.nodes = nodes;
+		this.length = length;
+
+	}
+
+	public void setNodes(Node[] nodes) { this.nodes = nodes; }
+	public void setLength(double length) { this.length = length; }
+	public Node[] getNodes() { return this.nodes; }
+	public Node getHead() { return this.head; }
+	public Node getTail() { return this.tail; }
+	public Node getNode(int i) { return this.nodes[i]; }
+	public int getNodesSize() { return nodes.length; }
+	public double getLength() { return length; }
+	public String toString() { return "ComplexLine id=" + this.getID() + " numNodes=" + this.getNodesSize() + " length=" + this.getLength(); }
 
-		zoom = Math.min(Math.max(zoom+z, ZOOM_MIN), ZOOM_MAX);
+}
 
-	}
-	
-	public static double distanceBetween(Drawable d1, Drawable d2) {
-		
-		return Vector2.distanceBetween(d1.getPos(), d2.getPos());
-		
-	}
+enum TransitStatus {
 
-	public static void drawCircle(App a, Drawable d) {
+	WALKING, LINE_TRANSFER, WAITING_AT_STATION, ON_TRAIN, SPAWN, DESPAWN, PENDING_ROUTE
 
-		drawCircle(a, d, d.getColor());
+}
+
+// citizen settings, the citizens themselves live in a CitizenStore
+class Citizen {
+
+	public static final Vector3 DEFAULT_CITIZEN_SPAWN_COLOR = Vector3.gray;
+	public static final Vector3 DEFAULT_CITIZEN_COLOR = Vector3.black;
+	public static final double DEFAULT_CITIZEN_SIZE = 0.25;
+	public static final double DEFAULT_CONTAINER_CITIZEN_SIZE = (CitizenContainer.MAX_SIZE - Train.DEFAULT_TRAIN_SIZE) / Train.DEFAULT_TRAIN_CAPACITY;
+	public static final double DEFAULT_UNLOAD_TIME = 16;
+	public static final double DEFAULT_CITIZEN_SPEED = 0.02;
+	public static final double MAX_TIME_ALIVE = 2048;
+	public static final double SPAWN_MAX_DIST = 10;
+	public static final double CLICK_SPAWN_MAX_DIST = 10;
+	public static final double SPAWN_INTERVAL = 1;
+	public static final int INITIAL_SPAWN_AMOUNT = 1024;
+	public static final int SPAWN_MAX = 256;
+	public static final int CLICK_SPAWN_MAX = 1024;
+	public static final boolean SPAWN_RANDRANGE = true;
+
+}
+
+// all citizens as parallel primitive arrays indexed by slot instead of an object each, so a tick is one tight loop over flat memory
+// the path of a citizen is an optional walk in from its spawn point followed by a shared route, pathIndex counts the walk as its first step
+// stations and trains are referred to by index (Node.getIndex, Train.getIndex), -1 for none
+// slots never move, released ones go on a free list and are handed out again before the arrays grow
+class CitizenStore {
+
+	// citizens per task in a parallel tick
+	public static final int CHUNK_SIZE = 4096;
+
+	// flags
+	// reached their first station, drawn in DEFAULT_CITIZEN_COLOR from then on
+	public static final byte ARRIVED = 2;
+	// started off the network and walks in from spawnX/spawnY first
+	public static final byte HAS_SPAWN = 4;
+	// counted in the world's rider index
+	public static final byte RIDER = 8;
+	// slot is on the free list
+	public static final byte FREE = 16;
+
+	private static final TransitStatus[] STATUSES = TransitStatus.values();
+	private static final int NO_LINE = -2;
+	private static final byte ON_TRAIN_STATUS = (byte) TransitStatus.ON_TRAIN.ordinal();
+
+	private World world;
+	private Node[] nodes;
+	private Train[] trains;
+	// set while an EventEngine drives the citizens instead of tick
+	private EventEngine events;
+	// despawned since the engine last collected them, there is no pass over every slot to find them in event mode
+	private ArrayList<Integer> finished;
+
+	private int size;
+	private int[] freeSlots;
+	private int freeCount;
+	private byte[] status;
+	private byte[] flags;
+	private Route[] routes;
+	private Future<Route>[] pendingRoutes;
+	private int[] pathIndex;
+	private int[] routeStart;
+	private int[] currentNode;
+	private int[] currentTrain;
+	// train dwells a rider's path has caught up to, see catchUp
+	private int[] filedAt;
+	// bumped whenever a slot is released, so events booked for its previous citizen can be told apart
+	private int[] epoch;
+	private float[] x;
+	private float[] y;
+	private float[] spawnX;
+	private float[] spawnY;
+	private float[] walkFromX;
+	private float[] walkFromY;
+	private float[] globalTime;
+	private float[] actionTime;
+	private float[] walkTime;
+	private float[] walkDist;
+	// slots found to change state in each chunk of a parallel tick
+	private int[][] changing;
+	private int[] changingCount;
+
+	public CitizenStore(World world, Node[] nodes, Train[] trains, int capacity) {
+
+		this.world = world;
+		this.nodes = nodes;
+		this.trains = trains;
+		this.freeSlots = new int[16];
+		this.finished = new ArrayList<Integer>();
+		allocate(Math.max(capacity, 1));
 
 	}
-	
-	public static void drawCircle(App a, Drawable d, Vector3 col) {
 
-		a.drawCircle(d.getPos().plus(pan).plus(mousePan).times(zoom), d.getSize() * zoom, col);
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	private void allocate(int capacity) {
+
+		status = status == null ? new byte[capacity] : Arrays.copyOf(status, capacity);
+		flags = flags == null ? new byte[capacity] : Arrays.copyOf(flags, capacity);
+		routes = routes == null ? new Route[capacity] : Arrays.copyOf(routes, capacity);
+		pendingRoutes = pendingRoutes == null ? (Future<Route>[]) new Future[capacity] : Arrays.copyOf(pendingRoutes, capacity);
+		pathIndex = pathIndex == null ? new int[capacity] : Arrays.copyOf(pathIndex, capacity);
+		routeStart = routeStart == null ? new int[capacity] : Arrays.copyOf(routeStart, capacity);
+		currentNode = currentNode == null ? new int[capacity] : Arrays.copyOf(currentNode, capacity);
+		currentTrain = currentTrain == null ? new int[capacity] : Arrays.copyOf(currentTrain, capacity);
+		filedAt = filedAt == null ? new int[capacity] : Arrays.copyOf(filedAt, capacity);
+		epoch = epoch == null ? new int[capacity] : Arrays.copyOf(epoch, capacity);
+		x = x == null ? new float[capacity] : Arrays.copyOf(x, capacity);
+		y = y == null ? new float[capacity] : Arrays.copyOf(y, capacity);
+		spawnX = spawnX == null ? new float[capacity] : Arrays.copyOf(spawnX, capacity);
+		spawnY = spawnY == null ? new float[capacity] : Arrays.copyOf(spawnY, capacity);
+		walkFromX = walkFromX == null ? new float[capacity] : Arrays.copyOf(walkFromX, capacity);
+		walkFromY = walkFromY == null ? new float[capacity] : Arrays.copyOf(walkFromY, capacity);
+		globalTime = globalTime == null ? new float[capacity] : Arrays.copyOf(globalTime, capacity);
+		actionTime = actionTime == null ? new float[capacity] : Arrays.copyOf(actionTime, capacity);
+		walkTime = walkTime == null ? new float[capacity] : Arrays.copyOf(walkTime, capacity);
+		walkDist = walkDist == null ? new float[capacity] : Arrays.copyOf(walkDist, capacity);
 
 	}
 
-	public static void drawLine(App a, Drawable d1, Drawable d2) {
+	// a null spawn starts the citizen at the route's origin station, otherwise they walk there from spawn first
+	public int add(Node spawn, Route route) {
 
-		drawLine(a, d1, d2, d2.getColor());
+		int i = newSlot(spawn);
+		takeRoute(i, route);
+		return i;
 
 	}
 
-	public static void drawLine(App a, Drawable d1, Drawable d2, Vector3 col) {
+	// citizen waits at spawn (in the PENDING_ROUTE state) until its route has been computed in the background
+	public int add(Node spawn, Node origin, Future<Route> pendingRoute) {
 
-		a.drawLine(d1.getPos().plus(pan).plus(mousePan).times(zoom), d2.getPos().plus(pan).plus(mousePan).times(zoom), col);
+		int i = newSlot(spawn);
+		Node start = spawn == null ? origin : spawn;
+		x[i] = (float) start.getX();
+		y[i] = (float) start.getY();
+		pendingRoutes[i] = pendingRoute;
+		status[i] = (byte) TransitStatus.PENDING_ROUTE.ordinal();
+		return i;
 
 	}
 
-	public static void drawComplexLine(App a, ComplexLine cl) {
+	private int newSlot(Node spawn) {
 
-		drawComplexLine(a, cl, cl.getColor());
+		int i;
+		if (freeCount > 0) {
+
+			i = freeSlots[--freeCount];
+
+		} else {
+
+			if (size == status.length) { allocate(status.length * 2); }
+			i = size++;
+
+		}
+
+		status[i] = (byte) TransitStatus.SPAWN.ordinal();
+		flags[i] = spawn == null ? 0 : HAS_SPAWN;
+		routes[i] = null;
+		pendingRoutes[i] = null;
+		pathIndex[i] = 0;
+		routeStart[i] = 0;
+		currentNode[i] = -1;
+		currentTrain[i] = -1;
+		spawnX[i] = spawn == null ? 0 : (float) spawn.getX();
+		spawnY[i] = spawn == null ? 0 : (float) spawn.getY();
+		globalTime[i] = 0;
+		actionTime[i] = 0;
+		walkTime[i] = 0;
+		walkDist[i] = 0;
+		return i;
 
 	}
 
-	public static void drawComplexLine(App a, ComplexLine cl, Vector3 col) {
+	private void takeRoute(int i, Route route) {
 
-		for (int i = 1; i < cl.getNodesSize(); i++) {
+		routes[i] = route;
+		if (route == null || getPathLength(i) <= 1) {
 
-			drawLine(a, cl.getNode(i-1), cl.getNode(i), col);
+			despawn(i);
+			return;
+
+		}
+
+		int start = getPathStation(i, 0);
+		x[i] = start < 0 ? spawnX[i] : (float) nodes[start].getX();
+		y[i] = start < 0 ? spawnY[i] : (float) nodes[start].getY();
+		status[i] = (byte) TransitStatus.SPAWN.ordinal();
+		pathIndex[i] = 0;
+		globalTime[i] = 0;
+		actionTime[i] = 0;
+		walkTime[i] = 0;
+		routeStart[i] = 0;
+		world.addRider(i);
+		if (events != null) {
+
+			events.schedule(EventEngine.EXPIRE, i, Citizen.MAX_TIME_ALIVE - globalTime[i]);
+			schedule(i);
 
 		}
 
 	}
 
-	public static void drawPath(App a, ArrayList<Node.PathWrapper> path) {
+	// advances every citizen by dt
+	// with parallel set the own-slot part of every step runs in chunks on the common ForkJoin pool, then the state changes run here in slot order
+	// state changes never read another citizen's slot, so this ends up exactly where the plain loop would
+	public void tick(double dt, boolean parallel) {
 
-		drawCircle(a, path.get(0).getNode());
-		for (int i = 1; i < path.size(); i++) {
+		if (!parallel || size <= CHUNK_SIZE) {
 
-			drawCircle(a, path.get(i).getNode(), Vector3.red);
-			drawLine(a, path.get(i-1).getNode(), path.get(i).getNode(), Vector3.red);
+			for (int i = 0; i < size; i++) {
+
+				if (advance(i, dt)) { changeState(i); }
+
+			}
+
+			return;
 
 		}
 
-	}
+		int chunks = (size + CHUNK_SIZE - 1) / CHUNK_SIZE;
+		if (changing == null || changing.length < chunks) {
 
-	public static void drawString(App a, Drawable d, String str, int size, boolean centered) {
+			changing = changing == null ? new int[chunks][] : Arrays.copyOf(changing, chunks);
+			changingCount = new int[chunks];
 
-		drawString(a, d, str, d.getColor(), size, centered);
+		}
 
-	}
+		IntStream.range(0, chunks).parallel().forEach(c -> {
 
-	public static void drawString(App a, Drawable d, String str, Vector3 col, int size, boolean centered) {
+			if (changing[c] == null) { changing[c] = new int[CHUNK_SIZE]; }
+			int[] slots = changing[c];
+			int n = 0;
+			for (int i = c * CHUNK_SIZE, end = Math.min(size, i + CHUNK_SIZE); i < end; i++) {
 
-		a.drawString(str, d.pos.plus(pan).plus(mousePan).times(zoom), col, (int) Math.ceil(size * zoom), centered);
+				if (advance(i, dt)) { slots[n++] = i; }
 
-	}
+			}
 
-	public static void resetPanZoom() { pan = new Vector2(); mousePan = new Vector2(); zoom = 1; }
-	public static void setPan(Vector2 p) { constrictPan(p); pan = p; }
-	public static void setMousePan(Vector2 mp) { constrictPan(mp); mousePan = mp; }
-	public static void setZoom(double z) { zoom = z; }
-	public static Vector2 getPan() { return pan; }
-	public static Vector2 getMousePan() { return mousePan; }
-	public static double getZoom() { return zoom; }
+			changingCount[c] = n;
 
-	public void setID(String id) { this.id = id; }
-	public void setPos(Drawable d) { this.pos = d.getPos(); }
-	public void setPos(Vector2 pos) { this.pos = pos; }
-	public void setPos(double x, double y) { this.pos.x = x; this.pos.y = y; }
-	public void setX(double x) { this.pos.x = x; }
-	public void setY(double y) { this.pos.y = y; }
-	public void setSegmentIndex(int x, int y) { this.xSegmentIndex = x; this.ySegmentIndex = y; }
-	public void setColor(Vector3 col) { this.color = col; }
-	public void setSize(double size) { this.size = size; }
-	public String getID() { return this.id; }
-	public Vector2 getPos() { return this.pos; }
-	public double getX() { return this.pos.x; }
-	public double getY() { return this.pos.y; }
-	public int getXSegmentIndex() { return this.xSegmentIndex; }
-	public int getYSegmentIndex() { return this.ySegmentIndex; }
-	public Vector3 getColor() { return this.color; }
-	public double getSize() { return this.size; }
-	public String toString() { return "Drawable id=" + this.id + " pos=" + this.pos; }
+		});
 
-}
+		for (int c = 0; c < chunks; c++) {
 
-class CitizenContainer extends Drawable {
+			for (int k = 0; k < changingCount[c]; k++) { changeState(changing[c][k]); }
+
+		}
 
-	public static final double MAX_SIZE = Node.DEFAULT_NODE_SIZE * 5;
-	
-	private int numCitizens;
-	
-	public CitizenContainer(String id, Vector2 pos, Vector3 color, double size) {
-	
-		super(id, pos, color, size);
-		this.numCitizens = 0;
-	
 	}
-	
-	public void addCitizen() { this.numCitizens++; }
-	public void removeCitizen() { this.numCitizens = Math.max(0, --this.numCitizens); }
-	public void clearCitizens() { this.numCitizens = 0; }
-	public int getCitizens() { return this.numCitizens; }
-	public double getSize() { return Math.min(MAX_SIZE, this.numCitizens * Citizen.DEFAULT_CONTAINER_CITIZEN_SIZE + super.getSize()); }
-	
-}
 
-class Node extends CitizenContainer {
+	// just so you know, this pair of functions is a pretty horrible mess
+	// it is the old per-object state machine step for step, only over slots and split in two:
+	// advance keeps the clocks and walks, touching nothing but slot i, and says whether the citizen changes state this step
+	private boolean advance(int i, double dt) {
 
-	public static final double DEFAULT_NODE_SIZE = 0.5;
-	public static final double DEFAULT_TRANSFER_WEIGHT = 16;
-	public static final double DEFAULT_TRANSFER_MAX_DIST = 2;
-	public static final double DEFAULT_CONST_STOP_PENALTY = 2;
-	public static final double DEFAULT_CONST_TRANSFER_PENALTY = 24;
+		TransitStatus s = STATUSES[status[i]];
+		if (s == TransitStatus.DESPAWN) { return false; }
 
-	private HashMap<PathWrapper, Double> neighbors;
-	private HashMap<String, Train> currentTrains;
+		if (s == TransitStatus.PENDING_ROUTE) {
 
-	// ridership of -1 indicates that it is not a station
-	private double ridership;
-	private double score;
+			globalTime[i] += dt;
+			return true;
 
-	public Node(Vector2 pos, Vector3 color, int ridership) {
+		}
 
-		this("", pos, color, ridership);
+		double modSpeed = Citizen.DEFAULT_CITIZEN_SPEED * dt;
+		globalTime[i] += dt;
+		actionTime[i] += dt;
+
+		if (pathIndex[i] == getPathLength(i)) { return true; }
+
+		switch (s) {
+
+		case WALKING:
+			int nextNode = getPathStation(i, pathIndex[i]);
+			float toX = nextNode < 0 ? spawnX[i] : (float) nodes[nextNode].getX();
+			float toY = nextNode < 0 ? spawnY[i] : (float) nodes[nextNode].getY();
+			// start walking along path
+			if (walkTime[i] == 0) {
+
+				walkDist[i] = (float) Math.hypot(toX - x[i], toY - y[i]);
+				walkFromX[i] = x[i];
+				walkFromY[i] = y[i];
+
+			}
+
+			if (walkTime[i] >= walkDist[i]) { return true; }
+
+			// continue walk to next path node
+			float t = walkTime[i] / walkDist[i];
+			x[i] = walkFromX[i] + t * (toX - walkFromX[i]);
+			y[i] = walkFromY[i] + t * (toY - walkFromY[i]);
+			walkTime[i] += modSpeed;
+			return false;
+		case LINE_TRANSFER:
+			return actionTime[i] >= Citizen.DEFAULT_UNLOAD_TIME;
+		case WAITING_AT_STATION:
+			// queued at the station, boarded by the next matching train (see board)
+			return false;
+		case ON_TRAIN:
+			// on the train's manifest, moved along by the train when it stops (see alight)
+			return false;
+		case SPAWN:
+			return true;
+		default:
+			return false;
+
+		}
 
 	}
 
-	public Node(String id, Vector2 pos, Vector3 color, int ridership) {
+	// changeState does the rest, which touches stations, trains and the world's rider index
+	private void changeState(int i) {
 
-		super(id, pos, color, DEFAULT_NODE_SIZE);
-		clear();
-		this.score = 0; this.ridership = ridership;
+		TransitStatus s = getStatus(i);
+		if (s == TransitStatus.PENDING_ROUTE) {
+
+			resolveRoute(i);
+			return;
+
+		}
+
+		if (finishTrip(i)) { return; }
+
+		switch (s) {
+
+		case WALKING:
+			endWalk(i);
+			break;
+		case LINE_TRANSFER:
+			endTransfer(i);
+			break;
+		case SPAWN:
+			setOff(i);
+			break;
+		default:
+			break;
+
+		}
 
 	}
 
-	public void addNeighbor(Node n, double d, Line l) {
+	// the end of the path is only noticed on the step after reaching it
+	private boolean finishTrip(int i) {
 
-		if (n == this) { return; }
-		neighbors.put(new PathWrapper(n, l), d);
+		if (pathIndex[i] != getPathLength(i)) { return false; }
+
+		TransitStatus s = getStatus(i);
+		if (s == TransitStatus.WAITING_AT_STATION || s == TransitStatus.LINE_TRANSFER) { nodes[currentNode[i]].removeCitizen(); }
+		despawn(i);
+		return true;
 
 	}
-	
-	public void addNearbyNeighbors(ArrayList<ArrayList<ArrayList<Drawable>>> segmentedNodes) {
-		
-		addNearbyNeighbors(segmentedNodes, true, Node.DEFAULT_TRANSFER_MAX_DIST);
-		
+
+	private void setOff(int i) {
+
+		if (getPathLineID(i, pathIndex[i]) == StationGraph.WALKING_LINE_ID) {
+
+			setStatus(i, TransitStatus.WALKING);
+
+		} else {
+
+			flags[i] |= ARRIVED;
+			moveAlongPath(i);
+			if (getStatus(i) == TransitStatus.DESPAWN) { return; }
+			nodes[currentNode[i]].addCitizen();
+			waitForTrain(i);
+
+		}
+
 	}
-	
-	public void addNearbyNeighbors(ArrayList<ArrayList<ArrayList<Drawable>>> segmentedNodes, boolean addToBoth, double range) {
-		
-		for (int x = -1; x <= 1; x++) {
-			
-			for (int y = -1; y <= 1; y++) {
-				
-				for (Drawable n : segmentedNodes.get(getXSegmentIndex()+x).get(getYSegmentIndex()+y)) {
-					
-					if (!n.getClass().equals(Node.class)) { continue; }
-					Node nNode = (Node) n;
-					double dist = Drawable.distanceBetween(this, n);
-					if (nNode.isStation() && dist <= range) {
-						
-						if (addToBoth) {
-							
-							addNeighborPair(this, nNode, dist, Line.WALKING_LINE);
-							
-						} else {
-							
-							this.addNeighbor(nNode, dist, Line.WALKING_LINE);
-							
-						}
-						
-					}
-					
-				}
-				
-			}
-			
+
+	// at station (or the spawn point), ready to proceed to next path node
+	public void endWalk(int i) {
+
+		if (events != null) {
+
+			// nothing moves citizens between events, they get to where they were going all at once
+			int next = getPathStation(i, pathIndex[i]);
+			x[i] = next < 0 ? spawnX[i] : (float) nodes[next].getX();
+			y[i] = next < 0 ? spawnY[i] : (float) nodes[next].getY();
+
 		}
-		
+
+		walkTime[i] = 0;
+		moveAlongPath(i);
+		// walked to the end of the trip, moveAlongPath despawned them
+		if (getStatus(i) == TransitStatus.DESPAWN) { return; }
+		if (getCurrentLineID(i) == StationGraph.WALKING_LINE_ID) {
+
+			setStatus(i, TransitStatus.WALKING);
+
+		} else {
+
+			nodes[currentNode[i]].addCitizen();
+			flags[i] |= ARRIVED;
+			waitForTrain(i);
+
+		}
+
+		if (events != null) { schedule(i); }
+
 	}
 
-	public static void addNeighborPair(Node a, Node b, double dist, Line l) {
+	// ready to wait for train
+	public void endTransfer(int i) {
 
-		a.addNeighbor(b, dist, l);
-		b.addNeighbor(a, dist, l);
+		actionTime[i] = 0;
+		waitForTrain(i);
+		if (events != null) { schedule(i); }
 
 	}
 
-	// pathfinding
-	public double getScore() { return this.score; }
-	public void setScore(double score) { this.score = score; }
+	// event engine counterpart of followPath, takes the steps that the next tick would take straight away and books an event for the end of the current walk leg or transfer
+	// waiting citizens and riders are picked up by trains as they come in (see board and alight)
+	public void schedule(int i) {
 
-	// line-based path generation may still not be 100% working as intended
-	public static ArrayList<PathWrapper> findPath(Node start, Node end) {
-
-		PriorityQueue<Node> queue = new PriorityQueue<>(Comparator.comparingDouble(Node::getScore));
-		HashSet<Node> visited = new HashSet<Node>();
-		HashMap<Node, PathWrapper> from = new HashMap<Node, PathWrapper>();
-		HashMap<Node, Double> score = new HashMap<Node, Double>();
+		TransitStatus s = getStatus(i);
+		if (s == TransitStatus.DESPAWN || s == TransitStatus.PENDING_ROUTE || finishTrip(i)) { return; }
 
-		score.put(start, 0.0);
-		start.setScore(score.get(start) + Drawable.distanceBetween(start, end));
-		queue.add(start);
+		switch (s) {
 
-		while (!queue.isEmpty()) {
+		case SPAWN:
+			setOff(i);
+			schedule(i);
+			break;
+		case WALKING:
+			int next = getPathStation(i, pathIndex[i]);
+			float toX = next < 0 ? spawnX[i] : (float) nodes[next].getX();
+			float toY = next < 0 ? spawnY[i] : (float) nodes[next].getY();
+			double dist = Math.hypot(toX - x[i], toY - y[i]);
+			events.schedule(EventEngine.WALK_END, i, dist / Citizen.DEFAULT_CITIZEN_SPEED);
+			break;
+		case LINE_TRANSFER:
+			events.schedule(EventEngine.TRANSFER_END, i, Math.max(0, Citizen.DEFAULT_UNLOAD_TIME - actionTime[i]));
+			break;
+		case WAITING_AT_STATION:
+			// a train may already be standing at the station
+			for (Train t : nodes[currentNode[i]].getCurrentTrains().values()) { board(t); }
+			break;
+		default:
+			break;
 
-			Node current = queue.poll();
+		}
 
-			// path found
-			if (current.equals(end)) {
+	}
 
-				ArrayList<PathWrapper> path = reconstructPath(from, end);
-				if (path.size() > 0) { path.add(new PathWrapper(end, path.get(path.size()-1).getLine())); }
-				return path;
+	private void waitForTrain(int i) {
 
-			}
+		setStatus(i, TransitStatus.WAITING_AT_STATION);
+		x[i] = (float) nodes[currentNode[i]].getX();
+		y[i] = (float) nodes[currentNode[i]].getY();
+		if (pathIndex[i] < getPathLength(i)) { nodes[currentNode[i]].enqueueBoarding(queueLine(getCurrentLineID(i)), getPathStation(i, pathIndex[i]), i); }
 
-			visited.add(current);
+	}
 
-			for (PathWrapper pathWrapper : current.getNeighbors().keySet()) {
+	private void leaveQueue(int i) {
 
-				Node neighbor = pathWrapper.getNode();
-				Line line = pathWrapper.getLine();
-				
-				if (visited.contains(neighbor)) { continue; }
+		if (pathIndex[i] < getPathLength(i)) { nodes[currentNode[i]].dequeueBoarding(queueLine(getCurrentLineID(i)), getPathStation(i, pathIndex[i]), i); }
 
-				double aggregateScore = score.get(current) + current.getNeighbors().get(pathWrapper);
+	}
 
-				// anti-transfer heuristic
-				if (from.get(neighbor) != null && !from.get(neighbor).getLine().equals(line)) {
+	// path-following is greedy if citizens will only take a train of the line they planned on, otherwise any train to the next stop will do
+	private static int queueLine(int line) { return Train.GREEDY_PATH ? line : NO_LINE; }
 
-					aggregateScore += Node.DEFAULT_CONST_TRANSFER_PENALTY;
+	// called by a train dwelling at a station, boards those queued for its line and next stop in arrival order until it is full
+	public void board(Train t) {
 
-				}
+		if (!t.getLine().isInService()) { return; }
 
-				if (!queue.contains(neighbor) || aggregateScore < score.get(neighbor)) {
+		ArrayDeque<Integer> queue = t.getNextStop().getBoardingQueue(queueLine(t.getLine().getIndex()), t.getRealNextStop().getIndex());
+		while (queue != null && !queue.isEmpty() && t.getCitizens() <= Train.DEFAULT_TRAIN_CAPACITY) {
 
-					from.put(neighbor, new PathWrapper(current, line));
-					score.put(neighbor, aggregateScore);
-					neighbor.setScore(score.get(neighbor) + Drawable.distanceBetween(neighbor, end));
+			int i = queue.poll();
+			t.removeCitizenAt(nodes[currentNode[i]]);
+			currentTrain[i] = t.getIndex();
+			t.addCitizen();
+			moveAlongPath(i);
+			// their next stop is the end of the trip, moveAlongPath already took them off again
+			if (getStatus(i) == TransitStatus.DESPAWN) { continue; }
+			setStatus(i, TransitStatus.ON_TRAIN);
+			// the stop they got on at doesn't move them along, the next one doesn't either (see depart)
+			filedAt[i] = t.getDwells() + 1;
+			t.addBoarding(i);
+			if (events != null) { schedule(i); }
 
-					if (!queue.contains(neighbor)) {
+		}
 
-						queue.add(neighbor);
+	}
 
-					}
+	// called by a train dwelling at a station, moves on only the riders listed under the stop the train last left
+	public void alight(Train t) {
 
-				}
+		ArrayList<Integer> riders = t.takeRiders(t.getStop().getIndex());
+		if (riders == null) { return; }
 
-			}
-		}
+		for (int i : riders) {
 
-		return null; // no path
+			catchUp(i);
+			moveAlongPath(i);
 
-	}
+			if (getStatus(i) != TransitStatus.DESPAWN && getCurrentLineID(i) != t.getLine().getIndex()) {
 
-	private static ArrayList<PathWrapper> reconstructPath(HashMap<Node, PathWrapper> from, Node current) {
+				// at station and transfer required, ready to proceed to next path node
+				removeFromTrain(i);
+				if (getCurrentLineID(i) == StationGraph.WALKING_LINE_ID) {
 
-		ArrayList<PathWrapper> path = new ArrayList<PathWrapper>();
+					setStatus(i, TransitStatus.WALKING);
 
-		while (from.containsKey(current)) {
+				} else {
 
-			PathWrapper currentPW = from.get(current);
-			current = currentPW.getNode();
-			path.add(new PathWrapper(current, currentPW.getLine()));
+					setStatus(i, TransitStatus.LINE_TRANSFER);
+					t.addCitizenAt(nodes[currentNode[i]]);
 
-		}
+				}
 
-		for (int i = 0; i < path.size()/2; i++) {
+				x[i] = (float) nodes[currentNode[i]].getX();
+				y[i] = (float) nodes[currentNode[i]].getY();
+				currentTrain[i] = -1;
+				actionTime[i] = 0;
 
-			int j = path.size()-1-i;
-			PathWrapper temp = path.get(i);
-			path.set(i, path.get(j));
-			path.set(j, temp);
+			} else if (getStatus(i) == TransitStatus.ON_TRAIN) {
 
-		}
+				t.addRider(getAlightStop(i, t), i);
 
-		return path;
+			}
 
-	};
-	
-	public static ArrayList<PathWrapper> generateWalkingPath(Node spawn, Node start, Node end) {
-		
-		ArrayList<PathWrapper> path = findPath(start, end);
-		path.add(0, new PathWrapper(spawn, Line.WALKING_LINE));
-		return path;
-		
-	}
+			if (events != null) { schedule(i); }
 
-	public void addTrain(Train train) { if (!this.currentTrains.containsKey(train.getID())) { this.currentTrains.put(train.getID(), train); } }
-	public void removeTrain(Train train) { this.currentTrains.remove(train.getID()); }
-	public void clear() { clearNeighbors(); clearTrains(); }
-	public void clearNeighbors() { this.neighbors = new HashMap<PathWrapper, Double>(); }
-	public void clearTrains() { this.currentTrains = new HashMap<String, Train>(Sim.DEFAULT_TRAIN_ALLOCATION); }
-	public void setRidership(double d) { this.ridership = d; }
-	public HashMap<PathWrapper, Double> getNeighbors() { return this.neighbors; }
-	public Node[] getNeighboringNodes() { Node[] nodes = new Node[this.getNeighbors().size()]; int i = 0; for (PathWrapper pw : this.getNeighbors().keySet()) { nodes[i++] = pw.getNode(); } return nodes; }
-	public HashMap<String, Train> getCurrentTrains() { return this.currentTrains; }
-	public double getRidership() { return this.ridership; }
-	public boolean isStation() { return this.ridership >= 0; }
-	public String toString() { return "Node id=" + this.getID() + " pos=" + this.getPos(); }
+		}
 
-	static class PathWrapper {
+	}
 
-		private Node node;
-		private Line line;
+	// called by a train leaving a station, from here on those who just got on count as riders
+	// circumvents counting the stop that a citizen just got on the train at as part of their journey
+	public void depart(Train t) {
 
-		public PathWrapper(Node node, Line line) {
+		for (int i : t.takeBoarding()) { t.addRider(getAlightStop(i, t), i); }
 
-			this.node = node;
-			this.line = line;
+	}
 
-		}
+	// riders are only moved along their path where they get off, this moves it along one stop for every stop the train made since
+	// so it is where stopping everywhere would have left it
+	public void catchUp(int i) {
 
-		public Node getNode() { return this.node; }
-		public Line getLine() { return this.line; }
-		public String toString() { return "PathWrapper line=" + line.getID() + " node=" + node; }
+		if (getStatus(i) != TransitStatus.ON_TRAIN) { return; }
+		Train t = trains[currentTrain[i]];
+		int last = getAlightIndex(i, t.getLine().getIndex());
+		for (; filedAt[i] < t.getDwells() && pathIndex[i] < last; filedAt[i]++) { moveAlongPath(i); }
 
 	}
 
-}
+	// the path index a rider on the given line has been moved along to once they get off, the first leg on another line or the end of the path
+	private int getAlightIndex(int i, int line) {
 
-class ComplexLine extends Drawable {
+		int k = pathIndex[i];
+		while (k < getPathLength(i) - 1 && getPathLineID(i, k) == line) { k++; }
+		return k;
 
-	private Node[] nodes;
-	private Node head;
-	private Node tail;
-	private double length;
+	}
 
-	public ComplexLine(String id, Vector3 col, Node[] nodes, double length) {
+	// whether a rider got on at the stop their train is still at, they are filed into the manifest once it leaves
+	private boolean isBoarding(int i) {
 
-		super(id, nodes[0].getPos(), col, -1);
-		this.head = nodes[0];
-		this.tail = nodes[nodes.length-1];
-		this.nodes = nodes;
-		this.length = length;
+		Train t = trains[currentTrain[i]];
+		return t.getStatus() == TransitStatus.WAITING_AT_STATION && filedAt[i] > t.getDwells();
 
 	}
 
-	public void setNodes(Node[] nodes) { this.nodes = nodes; }
-	public void setLength(double length) { this.length = length; }
-	public Node[] getNodes() { return this.nodes; }
-	public Node getHead() { return this.head; }
-	public Node getTail() { return this.tail; }
-	public Node getNode(int i) { return this.nodes[i]; }
-	public int getNodesSize() { return nodes.length; }
-	public double getLength() { return length; }
-	public String toString() { return "ComplexLine id=" + this.getID() + " numNodes=" + this.getNodesSize() + " length=" + this.getLength(); }
+	// the station a rider is listed under in the train's manifest, the train moves them along when it stops after it
+	private int getAlightStop(int i, Train t) { return getPathStation(i, getAlightIndex(i, t.getLine().getIndex()) - 1); }
 
-}
+	// takes an expiring citizen out of wherever they are counted, only those waiting or transferring are counted at their station
+	public void expire(int i) {
 
-enum TransitStatus {
+		TransitStatus s = getStatus(i);
+		if (s == TransitStatus.WAITING_AT_STATION) { leaveQueue(i); }
+		if (s == TransitStatus.WAITING_AT_STATION || s == TransitStatus.LINE_TRANSFER) { nodes[currentNode[i]].removeCitizen(); }
+		if (s == TransitStatus.ON_TRAIN) { removeFromTrain(i); }
 
-	WALKING, LINE_TRANSFER, WAITING_AT_STATION, ON_TRAIN, SPAWN, DESPAWN
+	}
 
-}
+	// picks up the background route once it is ready, a failed search despawns the citizen like a missing path would
+	private void resolveRoute(int i) {
 
-class Citizen extends Drawable {
+		if (!pendingRoutes[i].isDone()) { return; }
 
-	public static final Vector3 DEFAULT_CITIZEN_SPAWN_COLOR = Vector3.gray;
-	public static final Vector3 DEFAULT_CITIZEN_COLOR = Vector3.black;
-	public static final double DEFAULT_CITIZEN_SIZE = 0.25;
-	public static final double DEFAULT_CONTAINER_CITIZEN_SIZE = (CitizenContainer.MAX_SIZE - Train.DEFAULT_TRAIN_SIZE) / Train.DEFAULT_TRAIN_CAPACITY;
-	public static final double DEFAULT_UNLOAD_TIME = 16;
-	public static final double DEFAULT_CITIZEN_SPEED = 0.02;
-	public static final double MAX_TIME_ALIVE = 2048;
-	public static final double SPAWN_MAX_DIST = 10;
-	public static final double CLICK_SPAWN_MAX_DIST = 10;
-	public static final double SPAWN_INTERVAL = 1;
-	public static final int INITIAL_SPAWN_AMOUNT = 1024;
-	public static final int SPAWN_MAX = 256;
-	public static final int CLICK_SPAWN_MAX = 1024;
-	public static final boolean SPAWN_RANDRANGE = true;
+		float waited = globalTime[i];
+		Route route = null;
+		try {
 
-	private Sim sim;
-	private TransitStatus status;
-	private Node currentNode;
-	private Node nextNode;
-	private Train currentTrain;
-	private Line currentLine;
-	private Line nextLine;
-	private Node.PathWrapper[] path;
-	private int pathIndex;
-	private boolean justBoarded;
+			route = pendingRoutes[i].get();
 
-	private double globalTime;
-	private double actionTime;
-	private double walkTime;
-	private double walkDist;
-	private Vector2 initialWalkPos;
-	private double speed;
+		} catch (InterruptedException | ExecutionException e) { Sim.Logger.log("Route request failed: " + e); }
 
-	public Citizen(Sim sim, ArrayList<Node.PathWrapper> path) {
+		pendingRoutes[i] = null;
+		takeRoute(i, route);
+		globalTime[i] = waited;
 
-		super(new Vector2(), Citizen.DEFAULT_CITIZEN_SPAWN_COLOR, Citizen.DEFAULT_CITIZEN_SIZE);
-		this.sim = sim;
-		
-		if (path == null || path.size() <= 1) {
-			
-			this.status = TransitStatus.DESPAWN;
-			return;
-			
-		}
-		
-		setPos(path.get(0).getNode());
-		this.status = TransitStatus.SPAWN;
-		this.pathIndex = 0;
-		this.globalTime = 0;
-		this.actionTime = 0;
-		this.walkTime = 0;
-		this.speed = Citizen.DEFAULT_CITIZEN_SPEED;
-		justBoarded = false;
-		
-		
-		this.path = new Node.PathWrapper[path.size()];
-		for (int i = 0; i < this.path.length; i++) {
+		// the search may have started before a stop or line was closed, so check it the same way World.disrupt checks riders
+		if (world.isDisrupted() && getStatus(i) == TransitStatus.SPAWN && usesClosedEdge(i)) {
 
-			this.path[i] = path.get(i);
+			world.removeRider(i);
+			if (reroute(i)) { world.addRider(i); }
 
 		}
 
 	}
-	
-	// just so you know, this function is a pretty horrible mess
-	public void followPath() {
-				
-		if (status == TransitStatus.DESPAWN) { return; }
 
-		double modSpeed = speed * sim.getTimeIncrement();
-		globalTime += sim.getTimeIncrement();
-		actionTime += sim.getTimeIncrement();
+	private void despawn(int i) {
 
-		if (pathIndex == path.length) {
-
-			this.getCurrentNode().removeCitizen();
-			despawn();
-			return;
+		// assumes that node removals have already been handled correctly, this may be resulting in excess visual accumulation across nodes
+		removeFromTrain(i);
+		setStatus(i, TransitStatus.DESPAWN);
+		if (events != null) { finished.add(i); }
 
-		}
+	}
 
-		nextNode = path[pathIndex].getNode();
-		nextLine = path[pathIndex].getLine();
+	private void moveAlongPath(int i) {
 
-		switch (this.status) {
+		actionTime[i] = 0;
+		currentNode[i] = getPathStation(i, pathIndex[i]);
+		pathIndex[i]++;
+		if (pathIndex[i] == getPathLength(i)) { despawn(i); }
 
-		case WALKING:
-			// start walking along path
-			if (walkTime == 0) {
-				
-				walkDist = Drawable.distanceBetween(this, nextNode);
-				initialWalkPos = this.getPos();
-				
-			}
-			
-			if (walkTime >= walkDist) {
-				
-				// at station, ready to proceed to next path node
-				walkTime = 0;
-				moveAlongPath();
-				if (currentLine == Line.WALKING_LINE) {
+	}
 
-					status = TransitStatus.WALKING;
+	private void removeFromTrain(int i) {
 
-				} else {
+		if (currentTrain[i] < 0) { return; }
 
-					status = TransitStatus.WAITING_AT_STATION;
-					this.currentNode.addCitizen();
-					this.setColor(DEFAULT_CITIZEN_COLOR);
-					
-				}
+		Train t = trains[currentTrain[i]];
+		t.removeCitizen();
+		t.removeRider(getAlightStop(i, t), i);
+		x[i] = (float) t.getX();
+		y[i] = (float) t.getY();
 
-			} else {
+	}
 
-				// continue walk to next path node
-				setPos(Vector2.lerp(walkTime/walkDist, initialWalkPos, nextNode.getPos()));
-				walkTime += modSpeed;
-				
-			}
+	// frees slot i for the next citizen, nothing else moves so slot numbers held elsewhere stay valid
+	public void release(int i) {
 
-			break;
-		case LINE_TRANSFER:
-			if (actionTime >= DEFAULT_UNLOAD_TIME) {
+		if ((flags[i] & FREE) != 0) { return; }
+		routes[i] = null;
+		pendingRoutes[i] = null;
+		currentNode[i] = -1;
+		currentTrain[i] = -1;
+		setStatus(i, TransitStatus.DESPAWN);
+		flags[i] = FREE;
+		epoch[i]++;
+		if (freeCount == freeSlots.length) { freeSlots = Arrays.copyOf(freeSlots, freeSlots.length * 2); }
+		freeSlots[freeCount++] = i;
 
-				// ready to wait for train
-				actionTime = 0;
-				status = TransitStatus.WAITING_AT_STATION;
-				
-			}
-			
-			break;
-		case WAITING_AT_STATION:
-			setPos(this.currentNode);
-			for (Train t : this.currentNode.getCurrentTrains().values()) {
+	}
 
-				if (t.getRealNextStop().equals(nextNode) && t.getCitizens() <= Train.DEFAULT_TRAIN_CAPACITY) {
+	public void clear() {
 
-					// path-following is greedy if citizens will take any available train to next stop
-					if (Train.GREEDY_PATH && !t.getLine().equals(currentLine)) { continue; }
-					
-					// ready to board train
-					this.currentNode.removeCitizen();
-					currentTrain = t;
-					this.currentTrain.addCitizen();
-					moveAlongPath();
-					status = TransitStatus.ON_TRAIN;
-					justBoarded = true;
-					break;
+		Arrays.fill(routes, 0, size, null);
+		Arrays.fill(pendingRoutes, 0, size, null);
+		for (int i = 0; i < size; i++) { epoch[i]++; }
+		finished.clear();
+		size = 0;
+		freeCount = 0;
+		for (Node n : nodes) { n.clearBoardingQueues(); }
 
-				}
+	}
 
-			}
-			
-			break;
-		case ON_TRAIN:
-			// circumvents counting the stop that a citizen just got on the train at as part of their journey
-			if (justBoarded && currentTrain.getStatus().equals(TransitStatus.ON_TRAIN)) { justBoarded = false; }
-			if (!justBoarded && currentTrain.getStatus().equals(TransitStatus.WAITING_AT_STATION) && currentTrain.getStop().equals(currentNode)) {
+	// index of the path node the citizen is at or committed to reaching next, the part of the path from here on can still be changed
+	private int getRerouteAnchor(int i) {
 
-				// how on earth is this not executing too many times?? whatever
-				moveAlongPath();
-				
-				if (!currentLine.equals(currentTrain.getLine())) {
+		switch (STATUSES[status[i]]) {
 
-					// at station and transfer required, ready to proceed to next path node
-					removeFromTrain();
-					if (currentLine.equals(Line.WALKING_LINE)) {
-						
-						status = TransitStatus.WALKING;
-						
-					} else {
-						
-						status = TransitStatus.LINE_TRANSFER;
-						currentNode.addCitizen();
-						
-					}
-					
-					setPos(currentNode);
-					
-					currentTrain = null;
-					actionTime = 0;
-						
-				}
+		case WAITING_AT_STATION:
+		case LINE_TRANSFER:
+		case ON_TRAIN:
+			// currentNode is the station the citizen is at, or for riders the next stop of their train
+			return pathIndex[i] - 1;
+		case SPAWN:
+		case WALKING:
+			return pathIndex[i] >= getRouteOffset(i) || pathIndex[i] + 1 >= getPathLength(i) ? pathIndex[i] : pathIndex[i] + 1;
+		default:
+			return -1;
 
-			} else {
+		}
 
-				// move with train
-				setPos(currentTrain);
+	}
 
-			}
-			
-			break;
-		case SPAWN:
-			if (nextLine.equals(Line.WALKING_LINE)) {
+	// whether the rest of the path uses anything that has been taken out of service
+	public boolean usesClosedEdge(int i) {
 
-				status = TransitStatus.WALKING;
+		catchUp(i);
+		int anchor = getRerouteAnchor(i);
+		if (anchor < 0) { return false; }
+		for (int k = anchor; k < getPathLength(i) - 1; k++) {
 
-			} else {
+			if (!Node.isOpen(getPathNode(i, k), getPathNode(i, k+1), getPathLine(i, k))) { return true; }
 
-				this.setColor(DEFAULT_CITIZEN_COLOR);
-				status = TransitStatus.WAITING_AT_STATION;
-				moveAlongPath();
-				this.currentNode.addCitizen();
-				
-				
-			}
-			
-			break;
-		default:
-			break;
-			
 		}
 
-	}
-	
-	private void despawn() {
-		
-		// assumes that node removals have already been handled correctly, this may be resulting in excess visual accumulation across nodes
-		removeFromTrain();
-		this.status = TransitStatus.DESPAWN;
-		
+		return false;
+
 	}
 
-	private void moveAlongPath() {
+	// replaces the rest of the path with a fresh route from the reroute anchor, abandoning the trip if there is none
+	// returns false if the citizen was despawned
+	public boolean reroute(int i) {
+
+		catchUp(i);
+		int anchor = getRerouteAnchor(i);
+		if (anchor < 0) { return false; }
+
+		Route route = routes[i];
+		Route next = Route.of(Node.findPath(getPathNode(i, anchor), route.getDestination()));
+		TransitStatus s = getStatus(i);
+		// the queue a waiting citizen is in depends on the rest of their path, and so does the stop a rider is listed under
+		// those who are still boarding are listed once the train leaves
+		Train t = s == TransitStatus.ON_TRAIN && !isBoarding(i) ? trains[currentTrain[i]] : null;
+		if (s == TransitStatus.WAITING_AT_STATION) { leaveQueue(i); }
+		if (t != null) { t.removeRider(getAlightStop(i, t), i); }
+		if (next == null || next.size() <= 1) {
+
+			if (s == TransitStatus.WAITING_AT_STATION || s == TransitStatus.LINE_TRANSFER) { nodes[currentNode[i]].removeCitizen(); }
+			despawn(i);
+			return false;
 
-		actionTime = 0;
-		currentNode = nextNode;
-		currentLine = nextLine;
-		pathIndex++;
-		if (pathIndex == path.length) {
-			
-			despawn();
-			return;
-			
 		}
-		nextNode = path[pathIndex].getNode();
-		nextLine = path[pathIndex].getLine();
 
-	}
-	
-	public void removeFromTrain() {
-		
-		if (this.currentTrain != null) { this.currentTrain.removeCitizen(); }
-		
+		// the anchor is always a station, so it is part of the route rather than the walk in
+		routeStart[i] = anchor - getRouteOffset(i);
+		routes[i] = route.splice(routeStart[i], next);
+		if (s == TransitStatus.WAITING_AT_STATION) { waitForTrain(i); }
+		if (t != null) { t.addRider(getAlightStop(i, t), i); }
+		if (events != null && s == TransitStatus.WAITING_AT_STATION) { schedule(i); }
+		return true;
+
 	}
 
-	public void setStatus(TransitStatus status) { this.status = status; }
-	public void setNode(Node node) { this.currentNode = node; }
-	public void setTrain(Train train) { this.currentTrain = train; }
-	public void setLine(Line line) { this.currentLine = line; }
-	public void setPath(Node.PathWrapper[] path) { assert path != null & path.length >= 1; this.path = path; this.nextNode = path[0].getNode(); this.nextLine = path[0].getLine(); }
-	public double getGlobalTime() { return this.globalTime; }
-	public double getActionTime() { return this.actionTime; }
-	public TransitStatus getStatus() { return this.status; }
-	public Node getCurrentNode() { return this.currentNode; }
-	public Train getCurrentTrain() { return this.currentTrain; }
-	public Line getCurrentLine() { return this.currentLine; }
-	public Node.PathWrapper[] getPath() { return this.path; }
-	public Node.PathWrapper getCurrentPathStep() { return this.path[this.pathIndex]; }
-	public int getPathIndex() { return this.pathIndex; }
-	public String toString() { return "Citizen id=" + getID() + " pos=" + getPos() + " pathStep=" + getCurrentPathStep(); }
+	private void setStatus(int i, TransitStatus s) { this.status[i] = (byte) s.ordinal(); }
+	public void setEvents(EventEngine events) { this.events = events; }
+	// may list a slot more than once, see despawn
+	public ArrayList<Integer> takeFinished() { ArrayList<Integer> done = this.finished; this.finished = new ArrayList<Integer>(); return done; }
+	public int getEpoch(int i) { return this.epoch[i]; }
+	public void setFlag(int i, byte flag, boolean set) { if (set) { this.flags[i] |= flag; } else { this.flags[i] &= ~flag; } }
+	public boolean hasFlag(int i, byte flag) { return (this.flags[i] & flag) != 0; }
+	// slots handed out so far, some of which may be free, see isFree
+	public int size() { return this.size; }
+	public int getActive() { return this.size - this.freeCount; }
+	public boolean isFree(int i) { return (this.flags[i] & FREE) != 0; }
+	public TransitStatus getStatus(int i) { return STATUSES[this.status[i]]; }
+	public double getGlobalTime(int i) { return this.globalTime[i]; }
+	public double getActionTime(int i) { return this.actionTime[i]; }
+	// riders are wherever their train is
+	public float getX(int i) { return this.status[i] == ON_TRAIN_STATUS ? (float) this.trains[this.currentTrain[i]].getX() : this.x[i]; }
+	public float getY(int i) { return this.status[i] == ON_TRAIN_STATUS ? (float) this.trains[this.currentTrain[i]].getY() : this.y[i]; }
+	public int getCurrentNode(int i) { return this.currentNode[i]; }
+	public int getCurrentTrain(int i) { return this.currentTrain[i]; }
+	public Route getRoute(int i) { return this.routes[i]; }
+	public int getRouteOffset(int i) { return (this.flags[i] & HAS_SPAWN) != 0 ? 1 : 0; }
+	public int getPathLength(int i) { return this.routes[i].size() + getRouteOffset(i); }
+	public int getPathIndex(int i) { return this.pathIndex[i]; }
+	public int getRouteStart(int i) { return this.routeStart[i]; }
+	// station index of path step k, -1 for the spawn point
+	public int getPathStation(int i, int k) { return k < getRouteOffset(i) ? -1 : this.routes[i].getStation(k - getRouteOffset(i)); }
+	public int getPathLineID(int i, int k) { return k < getRouteOffset(i) ? StationGraph.WALKING_LINE_ID : this.routes[i].getLineID(k - getRouteOffset(i)); }
+	public Node getPathNode(int i, int k) { return k < getRouteOffset(i) ? null : this.routes[i].getNode(k - getRouteOffset(i)); }
+	public Line getPathLine(int i, int k) { return k < getRouteOffset(i) ? Line.WALKING_LINE : this.routes[i].getLine(k - getRouteOffset(i)); }
+	// line the citizen last moved along, the line of the previous path step
+	public int getCurrentLineID(int i) { return this.pathIndex[i] == 0 ? NO_LINE : getPathLineID(i, this.pathIndex[i] - 1); }
+	// route identity for the world's rider index, the (station) origin and destination of the current route
+	public long getRouteKey(int i) { return RouteCache.key(this.routes[i].getNode(this.routeStart[i]), this.routes[i].getDestination()); }
+	public String toString() { return "CitizenStore active=" + getActive() + " slots=" + this.size + " capacity=" + this.status.length; }
 
 }
 
@@ -1471,8 +6099,16 @@ class Train extends CitizenContainer {
 	public static final boolean GREEDY_PATH = true;
 	public static final int SMALL_CITIZENS = 1;
 
+	// kinds of station changes
+	private static final int ADD_CITIZEN = 0;
+	private static final int REMOVE_CITIZEN = 1;
+	private static final int ADD_TRAIN = 2;
+	private static final int REMOVE_TRAIN = 3;
+
 	private TransitStatus status;
-	private Sim sim;
+	private World sim;
+	// position in the world's train array, citizens refer to their train by it
+	private int index;
 	private Line line;
 	private int stop;
 	private int nextStop;
@@ -1480,8 +6116,19 @@ class Train extends CitizenContainer {
 	private double stopTime;
 	private double stoppedTime;
 	private double speed;
-
-	public Train(String id, Sim sim, int spawnStop, Line line, Vector3 color, double speed) { 
+	// citizen slots riding this train, by the station they get off after, see CitizenStore.alight
+	private HashMap<Integer, ArrayList<Integer>> manifest;
+	// stops made so far, riders' paths catch up with the train by it (see CitizenStore.catchUp)
+	private int dwells;
+	// those who got on at the current stop, filed into the manifest once the train leaves
+	private ArrayList<Integer> boarding;
+	// while lines update in parallel, changes to stations (shared between lines) are held back as (station index << 2 | kind)
+	// and applied afterwards in line order, see World.tick
+	private boolean deferStationChanges;
+	private int[] stationChanges;
+	private int stationChangeCount;
+
+	public Train(String id, World sim, int spawnStop, Line line, Vector3 color, double speed) { 
 
 		super(id, line.getStop(spawnStop).getPos(), color, DEFAULT_TRAIN_SIZE);
 		this.sim = sim;
@@ -1489,6 +6136,9 @@ class Train extends CitizenContainer {
 		this.stop = spawnStop;
 		this.speed = speed;
 		this.status = TransitStatus.SPAWN;
+		this.manifest = new HashMap<Integer, ArrayList<Integer>>();
+		this.boarding = new ArrayList<Integer>();
+		this.stationChanges = new int[16];
 
 	}
 
@@ -1504,18 +6154,12 @@ class Train extends CitizenContainer {
 			// go to next station
 			if (stoppedTime >= DEFAULT_STOP_DURATION) {
 
-				this.status = TransitStatus.ON_TRAIN;
-				this.getNextStop().removeTrain(this);
-				stopTime = 0;
-				stoppedTime = 0;
-				stop = nextStop;
-				setPos(this.line.getStop(stop));
+				leaveStop();
 
 			// wait at station
 			} else {
 
-				this.status = TransitStatus.WAITING_AT_STATION;
-				this.getNextStop().addTrain(this);
+				dwell();
 				stoppedTime += sim.getTimeIncrement();
 
 			}
@@ -1530,7 +6174,104 @@ class Train extends CitizenContainer {
 
 	}
 
+	public void addRider(int stop, int citizen) { this.manifest.computeIfAbsent(stop, k -> new ArrayList<Integer>()).add(citizen); }
+	public void addBoarding(int citizen) { this.boarding.add(citizen); }
+	public void removeRider(int stop, int citizen) { ArrayList<Integer> riders = this.manifest.get(stop); if (riders == null || !riders.remove((Integer) citizen)) { this.boarding.remove((Integer) citizen); } }
+	public ArrayList<Integer> takeRiders(int stop) { return this.manifest.remove(stop); }
+	public ArrayList<Integer> takeBoarding() { ArrayList<Integer> boarded = this.boarding; this.boarding = new ArrayList<Integer>(); return boarded; }
+	public void clearCitizens() { super.clearCitizens(); this.manifest.clear(); this.boarding.clear(); }
+	private void dwell() {
+
+		this.status = TransitStatus.WAITING_AT_STATION;
+		if (stoppedTime == 0) { this.dwells++; }
+		changeStation(this.getNextStop(), ADD_TRAIN);
+		sim.getCitizens().alight(this);
+		sim.getCitizens().board(this);
+
+	}
+
+	private void leaveStop() {
+
+		this.status = TransitStatus.ON_TRAIN;
+		changeStation(this.getNextStop(), REMOVE_TRAIN);
+		sim.getCitizens().depart(this);
+		stopTime = 0;
+		stoppedTime = 0;
+		stop = nextStop;
+		setPos(this.line.getStop(stop));
+
+	}
+
+	public void addCitizenAt(Node station) { changeStation(station, ADD_CITIZEN); }
+	public void removeCitizenAt(Node station) { changeStation(station, REMOVE_CITIZEN); }
+
+	private void changeStation(Node station, int kind) {
+
+		if (!deferStationChanges) {
+
+			applyStationChange(station, kind);
+			return;
+
+		}
+
+		if (stationChangeCount == stationChanges.length) { stationChanges = Arrays.copyOf(stationChanges, stationChanges.length * 2); }
+		stationChanges[stationChangeCount++] = station.getIndex() << 2 | kind;
+
+	}
+
+	private void applyStationChange(Node station, int kind) {
+
+		switch (kind) {
+
+		case ADD_CITIZEN: station.addCitizen(); break;
+		case REMOVE_CITIZEN: station.removeCitizen(); break;
+		case ADD_TRAIN: station.addTrain(this); break;
+		case REMOVE_TRAIN: station.removeTrain(this); break;
+		default: break;
+
+		}
+
+	}
+
+	public void deferStationChanges() { this.deferStationChanges = true; }
+
+	// applies the held back changes in the order they were made and goes back to changing stations directly
+	public void applyStationChanges(Node[] stations) {
+
+		for (int k = 0; k < stationChangeCount; k++) { applyStationChange(stations[stationChanges[k] >> 2], stationChanges[k] & 3); }
+		stationChangeCount = 0;
+		deferStationChanges = false;
+
+	}
+
+	// event engine counterparts of updatePosAlongLine, the train pulls into its next stop and later leaves it in one step each
+	public void arrive() {
+
+		nextStop = (this.stop+1) % line.getLength();
+		stopTime = this.line.getDist(nextStop);
+		setPos(this.getNextStop());
+		dwell();
+
+	}
+
+	public void depart() {
+
+		leaveStop();
+		nextStop = (this.stop+1) % line.getLength();
+
+	}
+
+	// time left until the train reaches its next stop, or until it leaves the one it is standing at
+	public double getTimeToNextEvent() {
+
+		if (this.status == TransitStatus.WAITING_AT_STATION) { return Math.max(0, DEFAULT_STOP_DURATION - stoppedTime); }
+		return Math.max(0, this.line.getDist((this.stop+1) % line.getLength()) - stopTime) / speed;
+
+	}
+
 	public void setSpeed(double speed) { this.speed = speed; }
+	public void setIndex(int index) { this.index = index; }
+	public int getIndex() { return this.index; }
 	public TransitStatus getStatus() { return this.status; }
 	public Line getLine() { return this.line; }
 	// current stop is the stop the train was last physically at, next stop is the stop that the train either is headed to or just arrived at, real next stop is a stop that the train has not arrived at yet
@@ -1539,6 +6280,7 @@ class Train extends CitizenContainer {
 	public Node getNextStop() { return this.line.getStop(this.nextStop); }
 	public Node getRealNextStop() { return this.line.getStop((this.stop + 2) % this.line.getLength()); }
 	public int getStopIndex() { return this.stop; }
+	public int getDwells() { return this.dwells; }
 	public double getGlobalTime() { return this.globalTime; }
 	public double getStopTime() { return this.stopTime; }
 	public double getStoppedTime() { return this.stoppedTime; }
@@ -1554,6 +6296,10 @@ class Line {
 
 	private String id;
 	private Vector3 color;
+	// index into the simulation line array, -1 for the walking line
+	private int index;
+	// read by route workers off the simulation thread, see Node.isOpen
+	private volatile boolean inService;
 
 	private Node[] stops;
 	private double[] dists;
@@ -1562,6 +6308,8 @@ class Line {
 	public Line(String id) {
 
 		this.id = id;
+		this.index = -1;
+		this.inService = true;
 
 	}
 
@@ -1647,6 +6395,8 @@ class Line {
 	public void setTrains(Train[] trains) { this.trains = trains; }
 	public void setColor(Vector3 col) { this.color = col; }
 	public void setID(String id) { this.id = id; }
+	public void setIndex(int index) { this.index = index; }
+	public void setInService(boolean inService) { this.inService = inService; }
 	public Node[] getStops() { return this.stops; }
 	public double[] getDists() { return this.dists; }
 	public Node getStop(int i) { return this.stops[i]; }
@@ -1655,6 +6405,8 @@ class Line {
 	public Train[] getTrains() { return this.trains; }
 	public Vector3 getColor() { return this.color; }
 	public String getID() { return this.id; }
+	public int getIndex() { return this.index; }
+	public boolean isInService() { return this.inService; }
 	public String toString() { return "Line id= " + this.id; }
 
 }